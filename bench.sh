@@ -2,23 +2,74 @@
 
 #CFG="-Dlog4j.configuration=bench-log4j.xml"
 CFG="-Dbench.payloadsize=2048 $CFG"
+#Value type (string, bytes, pojo or externalizer) and sizes (fixed at bench.payloadsize, uniform or bimodal between min and max);
+#the report adds the marshalling cost of the values and the bytes sent per operation:
+#CFG="-Dbench.valueType=externalizer -Dbench.valueSizeDistribution=bimodal -Dbench.valueSizeMin=256 -Dbench.valueSizeMax=65536 -Dbench.bimodalLargePercent=5 $CFG"
 #CFG="-Dbench.vnodes=48 $CFG"
 CFG="-Dbench.numkeys=2500 $CFG"
+#Key access distribution: uniform (default), zipf, hotspot or sequential
+#CFG="-Dbench.keyDistribution=zipf -Dbench.zipfExponent=0.99 $CFG"
+#CFG="-Dbench.keyDistribution=hotspot -Dbench.hotspotOpsPercent=90 -Dbench.hotspotKeysPercent=10 $CFG"
+#Percentage of writes going to keys shared by all nodes (writers of different nodes never conflict by default):
+#CFG="-Dbench.writeOverlapPercent=10 $CFG"
+#Lock contention: failed transactions are counted instead of ending the run, lock waits measured; compare lock striping,
+#concurrency levels and isolation levels by sweeping them, along with bench.writeOverlapPercent (see SweepOrchestrator below):
+#CFG="-Dbench.contention=true -Dbench.writeOverlapPercent=20 -Dbench.sharedKeys=100 -Dbench.lockStriping=false -Dbench.concurrencyLevel=64 -Dbench.isolationLevel=REPEATABLE_READ $CFG"
 CFG="-Dbench.transactional=true $CFG"
+#Transaction shape: gets per reader tx, writes per writer tx (optionally batched in a putAll, or read-modify-write):
+#CFG="-Dbench.txReads=10 -Dbench.txWrites=10 -Dbench.putAll=true -Dbench.readModifyWrite=false $CFG"
+#Don't enlist the dummy XA resource(s) forcing 2PC, or enlist more of them:
+#CFG="-Dbench.force2PC=false $CFG"
+#CFG="-Dbench.xaResources=3 $CFG"
+#Membership changes under load (seconds after warmup:join|leave|kill), on nodes without workers; REPL needs the state fetch:
+#CFG="-Dbench.membershipSchedule=300:leave,420:join,540:kill,660:join -Dbench.spareNodes=1 -Dbench.fetchInMemoryState=true $CFG"
 CFG="-Dbench.dist=true $CFG"
 #CFG="-Dbench.nodes=1 $CFG" See below
 CFG="-Dbench.readerThreads=250 $CFG"
 CFG="-Dbench.writerThreads=50 $CFG"
 CFG="-Dbench.warmupMinutes=20 $CFG"
 CFG="-Dbench.durationMinutes=25 $CFG"
+#End the warmup once throughput and latency are stable, and the measurement once the throughput 95% CI is within 2%
+#(the two settings above then become upper bounds):
+#CFG="-Dbench.adaptiveWarmup=true -Dbench.targetCiPercent=2 $CFG"
 CFG="-Dbench.extraQuiet=true $CFG"
+#Live metrics per node (throughput, latencies, local gets in dist mode): NodeMetrics MBeans, and results/*-metrics.txt rewritten every 10s:
+#CFG="-Dbench.metrics=true $CFG"
+#Open loop: issue a fixed operation rate instead of looping as fast as possible (latency then includes queueing delay):
+#CFG="-Dbench.targetOpsPerSec=20000 -Dbench.writePercent=20 $CFG"
+#Measure the throughput ceiling of the load generator alone, against no-op caches:
+#CFG="-Dbench.selfTest=true $CFG"
+#Simulate many more clients: one virtual thread per worker (Java 21+), or async operations with N in flight per worker:
+#CFG="-Dbench.engine=virtual -Dbench.readerThreads=20000 -Dbench.writerThreads=5000 $CFG"
+#CFG="-Dbench.engine=async -Dbench.asyncInFlight=64 -Dbench.asyncExecutorThreads=64 $CFG"
 
 #To use default Infinispan UDP configuration for JGroups (instead of the benchmark included one, bench-jgroups.xml):
 CFG="-Dbench.jgroups_conf=jgroups-udp.xml $CFG"
+#Network latency, jitter and loss, only honoured by the benchmark stacks (comment out the line above): none (default), lan, cross-rack or lossy
+#Run it once per profile, with and without bench.dist, then compare each results dir with the "none" one using CompareResults:
+#CFG="-Dbench.networkProfile=cross-rack -Dbench.resultsDir=results/cross-rack $CFG"
 
 # Pick which benchmark we want to run:
 #BENCH="org.infinispan.benchmark.StartupSpeedTest"
+#CFG="-Dbench.startupThreads=8 -Dbench.startupConfigs=lirs-tx,none-tx,lirs-notx,none-notx -Djmx=true $CFG"
+#BENCH="org.infinispan.benchmark.TxSpeedTest"
+#CFG="-Dbench.txThreads=1,2,4,8,16 -Dbench.syncCommitPhase=true -Dbench.syncRollbackPhase=false $CFG"
 BENCH="org.infinispan.benchmark.Transactional"
+#Same benchmark, but each node runs in its own JVM (over a loopback TCP stack, bench-jgroups-tcp.xml: comment out the jgroups-udp.xml line above):
+#BENCH="org.infinispan.benchmark.ClusterCoordinator"
+#CFG="-Dbench.nodeJvmArgs=-Xms1G,-Xmx1G,-XX:+UseConcMarkSweepGC $CFG"
+#Cold start of fresh JVMs (with and without class data sharing), up to the first put:
+#BENCH="org.infinispan.benchmark.ColdStartTest"
+#CFG="-Dbench.coldStartMode=repl -Dbench.coldStartRuns=20 $CFG"
+#Retained heap per cache entry, also needs -XX:MarkSweepDeadRatio=0 in MAVEN_OPTS below (run it with a single version and node count):
+#BENCH="org.infinispan.benchmark.FootprintTest"
+#CFG="-Dbench.footprintKeySizes=16,64 -Dbench.footprintValueSizes=16,256,4096 -Dbench.footprintModes=local,local-tx,local-eviction,repl,dist,dist-l1 $CFG"
+#Eviction strategies against read-through workloads larger than the cache (run it with a single version and node count):
+#BENCH="org.infinispan.benchmark.EvictionTest"
+#CFG="-Dbench.evictionCapacity=10000 -Dbench.evictionWorkingSet=50000 -Dbench.missPenaltyMicros=100 -Dbench.evictionPatterns=uniform,zipf,sequential,shifting $CFG"
+#FileCacheStore write-through, write-behind and passivation, then a warm start from a store of a million entries:
+#BENCH="org.infinispan.benchmark.PersistenceTest"
+#CFG="-Dbench.storeDir=/data/tmp -Dbench.storeFsync=per-write -Dbench.writeBehindQueueSize=1024 -Dbench.preloadEntries=1000000 $CFG"
 
 JAVA_HOME="/usr/lib/jvm/java-1.6.0-openjdk.x86_64"
 
@@ -31,7 +82,10 @@ MAVEN_OPTS="$MAVEN_OPTS -Djava.net.preferIPv4Stack=true -Djgroups.bind_addr=127.
 MAVEN_OPTS="$MAVEN_OPTS -Xbatch -server -XX:+UseCompressedOops"
 MAVEN_OPTS="$MAVEN_OPTS -XX:+UseLargePages -XX:LargePageSizeInBytes=2m -XX:+AlwaysPreTouch"
 
-# Optionally select a profiling agent:
+# Optionally profile the measured phase only, with a flight recording saved and summarized next to the results (Java 11+):
+#CFG="-Dbench.jfr=true -Dbench.jfrSettings=profile -Dbench.jfrTop=20 $CFG"
+
+# Or select a profiling agent (these record the warmup too):
 AGENT=""
 #AGENT="-agentpath:/usr/lib64/oprofile/libjvmti_oprofile.so"
 #AGENT="-agentpath:/opt/jprofiler/jprofiler71/bin/linux-x64/libjprofilerti.so=port=8849,nowait"
@@ -42,6 +96,7 @@ AGENT=""
 #MAVEN_OPTS="$MAVEN_OPTS -XX:+UseConcMarkSweepGC"
 #MAVEN_OPTS="$MAVEN_OPTS -XX:PrintCMSStatistics=1 -XX:+PrintCMSInitiationStatistics"
 #MAVEN_OPTS="$MAVEN_OPTS -XX:+PrintCompilation "
+#MAVEN_OPTS="$MAVEN_OPTS -XX:MarkSweepDeadRatio=0"
 
 MAVEN_OPTS="$AGENT $MAVEN_OPTS"
 
@@ -59,6 +114,10 @@ echo ""
 versions="5.1.0.CR3 5.1.1.FINAL"
 nodenums="1 2 4 8 16"
 
+#Or a resumable sweep over any matrix, cells in their own JVMs, two at a time on half the cores each (see SweepOrchestrator):
+#printf 'infinispanVersion=5.1.0.CR3,5.1.1.FINAL\nbench.nodes=1,2,4,8,16\nbench.dist=true,false\n' > sweep.properties
+#(cd benchmark && mvn -q compile) && java -Dbench.sweepParallel=2 $CFG -cp benchmark/target/classes org.infinispan.benchmark.SweepOrchestrator sweep.properties; exit
+
 cd benchmark
 for version in $versions; do
    for nodenum in $nodenums; do
@@ -69,5 +128,6 @@ for version in $versions; do
 done
 cd ..
 echo ""
-echo "   Done!"
+echo "   Done! Results files are in benchmark/results, compare two sets of them with:"
+echo "   java -cp benchmark/target/classes org.infinispan.benchmark.CompareResults <baseline file or dir> <other file or dir>"
 
@@ -0,0 +1,317 @@
+package org.infinispan.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link Transactional} on a cluster made of one JVM per node, all on localhost, so that the nodes no
+ * longer share heap, GC pauses and threads. The coordinator forks the nodes, which form the cluster over a
+ * real loopback JGroups stack (bench-jgroups-tcp.xml unless bench.jgroups_conf is set); once every node is
+ * populated it starts all the workers at once, then polls each node for its counters and latency histograms
+ * at every progress tick and reports the merged numbers, warmup and test end included.
+ * <p>
+ * All the bench.*, jgroups.* and log4j.* system properties are passed on to the nodes, and
+ * bench.nodeJvmArgs (default "-Xms1G -Xmx1G") sets the heap and GC flags of every node JVM. They are
+ * separated by spaces or commas: the comma form, e.g. -Xms1G,-Xmx1G, survives the unquoted $CFG of bench.sh.
+ */
+public class ClusterCoordinator {
+
+   private static final int NODES = Integer.getInteger("bench.nodes", 8);
+   private static final String NODE_JVM_ARGS = System.getProperty("bench.nodeJvmArgs", "-Xms1G -Xmx1G");
+   private static final String NODE_JGROUPS_CONF = System.getProperty("bench.jgroups_conf", "bench-jgroups-tcp.xml");
+   private static final long JOIN_TIMEOUT_MINUTES = Long.getLong("bench.nodeJoinTimeoutMinutes", 10);
+
+   private static final String START = "START";
+   private static final String STATS = "STATS";
+   private static final String STOP = "STOP";
+   private static final String PROFILE_START = "PROFILE_START";
+   private static final String PROFILE_STOP = "PROFILE_STOP";
+
+   private final List<Process> processes = new ArrayList<Process>(NODES);
+   private final List<NodeConnection> nodes = new ArrayList<NodeConnection>(NODES);
+
+   public static void main(String[] args) throws Exception {
+      org.infinispan.Version.main(args);
+      Transactional.printConfiguration();
+      System.out.println("Node JVM options:\t" + NODE_JVM_ARGS);
+      new ClusterCoordinator().run();
+      System.exit(0);
+   }
+
+   public void run() throws Exception {
+      ServerSocket server = new ServerSocket(0, NODES, InetAddress.getByName("127.0.0.1"));
+      try {
+         for (int i = 0; i < NODES; i++) {
+            processes.add(fork(i, server.getLocalPort()));
+         }
+         System.out.printf("Forked %s nodes, waiting for them to join and populate%n", NODES);
+         acceptNodes(server);
+         for (NodeConnection node : nodes) {
+            node.send(START);
+         }
+         new Transactional().monitor(new StatsSource() {
+            public NodeStats collectStats() throws Exception {
+               NodeStats merged = new NodeStats();
+               for (NodeConnection node : nodes) {
+                  node.send(STATS);
+                  merged.add((NodeStats) node.receive());
+               }
+               return merged;
+            }
+
+            public void startProfiling(File file) throws Exception {
+               for (NodeConnection node : nodes) {
+                  node.send(PROFILE_START);
+                  node.out.writeObject(file.getAbsolutePath());
+                  node.out.flush();
+               }
+               for (NodeConnection node : nodes) {
+                  node.receive();
+               }
+            }
+
+            public void stopProfiling() throws Exception {
+               for (NodeConnection node : nodes) {
+                  node.send(PROFILE_STOP);
+               }
+               for (NodeConnection node : nodes) {
+                  node.receive();
+               }
+            }
+         });
+      } finally {
+         for (NodeConnection node : nodes) {
+            node.stop();
+         }
+         server.close();
+         stopProcesses();
+      }
+   }
+
+   private void acceptNodes(ServerSocket server) throws IOException {
+      final long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(JOIN_TIMEOUT_MINUTES);
+      server.setSoTimeout(1000);
+      while (nodes.size() < NODES) {
+         try {
+            Socket socket = server.accept();
+            NodeConnection node = new NodeConnection(socket);
+            nodes.add(node);
+            System.out.printf("Node %s ready%n", node.nodeIndex);
+         } catch (SocketTimeoutException e) {
+            for (int i = 0; i < processes.size(); i++) {
+               if (hasExited(processes.get(i)))
+                  throw new IllegalStateException("Node " + i + " exited before joining the cluster");
+            }
+            if (System.nanoTime() > deadline)
+               throw new IllegalStateException("Only " + nodes.size() + " of " + NODES + " nodes joined in " + JOIN_TIMEOUT_MINUTES + " minutes");
+         }
+      }
+   }
+
+   private Process fork(int nodeIndex, int coordinatorPort) throws IOException {
+      List<String> command = new ArrayList<String>();
+      command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+      for (String arg : NODE_JVM_ARGS.trim().split("[\\s,]+")) {
+         if (arg.length() > 0) command.add(arg);
+      }
+      command.add("-cp");
+      command.add(classpath());
+      for (Map.Entry<Object, Object> e : System.getProperties().entrySet()) {
+         String key = (String) e.getKey();
+         if (key.startsWith("bench.") || key.startsWith("jgroups.") || key.startsWith("log4j."))
+            command.add("-D" + key + "=" + e.getValue());
+      }
+      command.add("-Dbench.nodes=" + NODES);
+      command.add("-Dbench.nodeIndex=" + nodeIndex);
+      command.add("-Dbench.coordinatorPort=" + coordinatorPort);
+      command.add("-Dbench.jgroups_conf=" + NODE_JGROUPS_CONF);
+      command.add("-Dbench.extraQuiet=true");
+      command.add("-Djava.net.preferIPv4Stack=true");
+      command.add(Transactional.class.getName());
+
+      ProcessBuilder pb = new ProcessBuilder(command);
+      pb.redirectErrorStream(true);
+      Process process = pb.start();
+      pipeOutput(process.getInputStream(), "[node " + nodeIndex + "] ");
+      return process;
+   }
+
+   private void stopProcesses() throws InterruptedException {
+      final long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+      for (Process process : processes) {
+         while (!hasExited(process) && System.nanoTime() < deadline) Thread.sleep(100);
+         process.destroy();
+      }
+   }
+
+   private static boolean hasExited(Process process) {
+      try {
+         process.exitValue();
+         return true;
+      } catch (IllegalThreadStateException e) {
+         return false;
+      }
+   }
+
+   /**
+    * The classpath this class was loaded from; when started from Maven's exec:java that's not java.class.path.
+    */
+   static String classpath() {
+      ClassLoader cl = ClusterCoordinator.class.getClassLoader();
+      if (cl instanceof URLClassLoader) {
+         StringBuilder sb = new StringBuilder();
+         for (URL url : ((URLClassLoader) cl).getURLs()) {
+            if (!"file".equals(url.getProtocol())) continue;
+            if (sb.length() > 0) sb.append(File.pathSeparatorChar);
+            try {
+               sb.append(new File(url.toURI()).getPath());
+            } catch (Exception e) {
+               sb.append(url.getPath());
+            }
+         }
+         if (sb.length() > 0) return sb.toString();
+      }
+      return System.getProperty("java.class.path");
+   }
+
+   static void pipeOutput(final InputStream in, final String prefix) {
+      Thread t = new Thread("OutputPipe-" + prefix.trim()) {
+         public void run() {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+            try {
+               String line;
+               while ((line = reader.readLine()) != null) {
+                  System.out.println(prefix + line);
+               }
+            } catch (IOException e) {
+               // process gone
+            }
+         }
+      };
+      t.setDaemon(true);
+      t.start();
+   }
+
+   /**
+    * Coordinator side of the control connection of a node.
+    */
+   private static final class NodeConnection {
+      final Socket socket;
+      final ObjectOutputStream out;
+      final ObjectInputStream in;
+      final int nodeIndex;
+
+      NodeConnection(Socket socket) throws IOException {
+         this.socket = socket;
+         this.out = new ObjectOutputStream(socket.getOutputStream());
+         this.out.flush();
+         this.in = new ObjectInputStream(socket.getInputStream());
+         try {
+            this.nodeIndex = (Integer) in.readObject();
+         } catch (ClassNotFoundException e) {
+            throw new IOException("Unexpected handshake from node", e);
+         }
+      }
+
+      void send(String command) throws IOException {
+         out.writeObject(command);
+         out.reset();
+         out.flush();
+      }
+
+      Object receive() throws IOException, ClassNotFoundException {
+         return in.readObject();
+      }
+
+      void stop() {
+         try {
+            send(STOP);
+            socket.close();
+         } catch (IOException e) {
+            // node already gone
+         }
+      }
+   }
+
+   /**
+    * Node side of the control connection, see {@link Transactional#startForkedNode()}.
+    */
+   static final class NodeChannel {
+      private final Socket socket;
+      private final ObjectOutputStream out;
+      private final ObjectInputStream in;
+      private final int nodeIndex;
+      private FlightRecording recording;
+
+      private NodeChannel(Socket socket, int nodeIndex) throws IOException {
+         this.socket = socket;
+         this.nodeIndex = nodeIndex;
+         this.out = new ObjectOutputStream(socket.getOutputStream());
+         this.out.flush();
+         this.in = new ObjectInputStream(socket.getInputStream());
+      }
+
+      /**
+       * Connects to the coordinator, telling it this node is ready to start.
+       */
+      static NodeChannel connect(int coordinatorPort, int nodeIndex) throws IOException {
+         NodeChannel channel = new NodeChannel(new Socket(InetAddress.getByName("127.0.0.1"), coordinatorPort), nodeIndex);
+         channel.out.writeObject(nodeIndex);
+         channel.out.flush();
+         return channel;
+      }
+
+      void awaitStart() throws IOException, ClassNotFoundException {
+         Object command = in.readObject();
+         if (!START.equals(command)) throw new IllegalStateException("Expected " + START + " but got " + command);
+      }
+
+      /**
+       * Answers the statistics and profiling requests of the coordinator, until it tells the node to stop.
+       * Recordings are named after the file given by the coordinator, with the index of the node.
+       */
+      void serve(StatsSource statsSource) throws Exception {
+         Object command;
+         while (!STOP.equals(command = in.readObject())) {
+            if (STATS.equals(command)) {
+               out.writeObject(statsSource.collectStats());
+            } else if (PROFILE_START.equals(command)) {
+               String file = ((String) in.readObject()).replaceFirst("\\.jfr$", "");
+               recording = FlightRecording.start(new File(file + "-node" + nodeIndex + ".jfr"));
+               out.writeObject(recording != null);
+            } else if (PROFILE_STOP.equals(command)) {
+               if (recording != null) recording.stop();
+               recording = null;
+               out.writeObject(Boolean.TRUE);
+            } else {
+               throw new IllegalStateException("Unexpected command " + command);
+            }
+            out.reset();
+            out.flush();
+         }
+      }
+
+      void close() {
+         try {
+            socket.close();
+         } catch (IOException e) {
+            // ignore
+         }
+      }
+   }
+}
@@ -0,0 +1,273 @@
+package org.infinispan.benchmark;
+
+import org.infinispan.Cache;
+import org.infinispan.config.Configuration;
+import org.infinispan.config.GlobalConfiguration;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.remoting.transport.jgroups.JGroupsTransport;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures what a restarted node pays before it can serve its first request: each run launches a fresh JVM
+ * which creates a DefaultCacheManager, gets its cache, joins the cluster (clustered modes only) and puts one
+ * entry. Nothing is warmed up, so class loading, JIT and the first cache startup are all part of the numbers,
+ * unlike in {@link StartupSpeedTest}.
+ * <p>
+ * For clustered modes (bench.coldStartMode=repl or dist, default local) the launcher itself is the first
+ * member of the cluster, so every fresh JVM has to join an existing one over bench-jgroups-tcp.xml.
+ * <p>
+ * Each run is repeated for each JVM variant of bench.coldStartVariants, to tell library regressions apart from
+ * JVM ones:
+ * <ul>
+ *    <li>nocds: class data sharing disabled (-Xshare:off)</li>
+ *    <li>default: the JVM defaults, usually a CDS archive of the JDK classes only</li>
+ *    <li>appcds: a dynamic CDS archive of the JDK, Infinispan and JGroups classes, dumped by a training run
+ *    (needs JDK 13 or later, skipped otherwise)</li>
+ * </ul>
+ * Variants are interleaved, so that a drift of the machine affects all of them alike.
+ */
+public class ColdStartTest {
+
+   private static final int RUNS = Integer.getInteger("bench.coldStartRuns", 10);
+   private static final int DISCARDED_RUNS = Integer.getInteger("bench.coldStartDiscardedRuns", 1); //warms the OS file cache
+   private static final String MODE = System.getProperty("bench.coldStartMode", "local");
+   private static final String VARIANTS = System.getProperty("bench.coldStartVariants", "nocds,default,appcds");
+   private static final String JVM_ARGS = System.getProperty("bench.coldStartJvmArgs", "-Xms512M -Xmx512M");
+   private static final String JGROUPS_CONF = System.getProperty("bench.jgroups_conf", "bench-jgroups-tcp.xml");
+
+   private static final String PROBE = "probe";
+   private static final String RESULT_PREFIX = "COLDSTART ";
+
+   /**
+    * Metrics reported by a probe, in milliseconds since the JVM started unless stated otherwise.
+    */
+   private static final String[] METRICS = { "launch", "main", "cacheManager", "getCache", "join", "firstPut", "total", "classes", "jitMillis" };
+
+   public static void main(String[] args) throws Exception {
+      if (args.length > 0 && PROBE.equals(args[0])) {
+         probe();
+         System.exit(0);
+      }
+      org.infinispan.Version.main(args);
+      System.out.printf("Cold start: mode %s, %s runs per variant (%s discarded), variants %s, JVM options %s%n",
+            MODE, RUNS, DISCARDED_RUNS, VARIANTS, JVM_ARGS);
+
+      DefaultCacheManager seed = null;
+      if (isClustered()) {
+         seed = new DefaultCacheManager(globalConfiguration(), configuration());
+         seed.getCache();
+      }
+      File archive = null;
+      try {
+         Map<String, List<String>> variants = new LinkedHashMap<String, List<String>>();
+         for (String variant : VARIANTS.split(",")) {
+            variant = variant.trim();
+            if (variant.equals("nocds")) {
+               variants.put(variant, Arrays.asList("-Xshare:off"));
+            } else if (variant.equals("default")) {
+               variants.put(variant, new ArrayList<String>());
+            } else if (variant.equals("appcds")) {
+               archive = File.createTempFile("coldstart", ".jsa");
+               if (trainArchive(archive))
+                  variants.put(variant, Arrays.asList("-XX:SharedArchiveFile=" + archive.getPath()));
+               else
+                  System.out.println("Skipping appcds: this JVM can't dump a dynamic CDS archive (needs JDK 13 or later)");
+            } else {
+               throw new IllegalArgumentException("Unknown variant " + variant + ", expected nocds, default or appcds");
+            }
+         }
+
+         for (int i = 0; i < DISCARDED_RUNS; i++) {
+            launch(new ArrayList<String>());
+         }
+         Map<String, List<Map<String, Long>>> results = new LinkedHashMap<String, List<Map<String, Long>>>();
+         for (String variant : variants.keySet()) {
+            results.put(variant, new ArrayList<Map<String, Long>>());
+         }
+         for (int i = 0; i < RUNS; i++) {
+            for (Map.Entry<String, List<String>> variant : variants.entrySet()) {
+               Map<String, Long> result = launch(variant.getValue());
+               if (result != null) results.get(variant.getKey()).add(result);
+            }
+         }
+         report(results);
+      } finally {
+         if (archive != null) archive.delete();
+         if (seed != null) seed.stop();
+      }
+      System.exit(0);
+   }
+
+   private static boolean isClustered() {
+      return !MODE.equals("local");
+   }
+
+   private static boolean trainArchive(File archive) throws IOException, InterruptedException {
+      archive.delete();
+      launch(Arrays.asList("-XX:ArchiveClassesAtExit=" + archive.getPath()));
+      return archive.length() > 0;
+   }
+
+   /**
+    * Runs a probe in a fresh JVM.
+    * @return the metrics it reported, or null if it failed
+    */
+   private static Map<String, Long> launch(List<String> variantArgs) throws IOException, InterruptedException {
+      List<String> command = new ArrayList<String>();
+      command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+      for (String arg : JVM_ARGS.trim().split("\\s+")) {
+         if (arg.length() > 0) command.add(arg);
+      }
+      command.addAll(variantArgs);
+      command.add("-cp");
+      command.add(ClusterCoordinator.classpath());
+      for (Map.Entry<Object, Object> e : System.getProperties().entrySet()) {
+         String key = (String) e.getKey();
+         if (key.startsWith("bench.") || key.startsWith("jgroups.") || key.startsWith("log4j."))
+            command.add("-D" + key + "=" + e.getValue());
+      }
+      command.add("-Dbench.nodes=2");
+      command.add("-Djava.net.preferIPv4Stack=true");
+      command.add(ColdStartTest.class.getName());
+      command.add(PROBE);
+
+      ProcessBuilder pb = new ProcessBuilder(command);
+      pb.redirectErrorStream(true);
+      final long launched = System.currentTimeMillis();
+      Process process = pb.start();
+      Map<String, Long> result = null;
+      BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+      try {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            if (line.startsWith(RESULT_PREFIX)) {
+               result = parse(line.substring(RESULT_PREFIX.length()), launched);
+            } else {
+               System.out.println("[probe] " + line);
+            }
+         }
+      } finally {
+         reader.close();
+      }
+      int exitCode = process.waitFor();
+      if (exitCode != 0 || result == null) {
+         System.out.printf("Probe failed with exit code %s, command: %s%n", exitCode, command);
+         return null;
+      }
+      return result;
+   }
+
+   private static Map<String, Long> parse(String line, long launched) {
+      Map<String, Long> result = new LinkedHashMap<String, Long>();
+      for (String pair : line.trim().split(" ")) {
+         int eq = pair.indexOf('=');
+         result.put(pair.substring(0, eq), Long.parseLong(pair.substring(eq + 1)));
+      }
+      final long jvmStart = result.remove("jvmStart");
+      result.put("launch", jvmStart - launched);
+      result.put("total", jvmStart - launched + result.get("firstPut"));
+      return result;
+   }
+
+   private static void report(Map<String, List<Map<String, Long>>> results) {
+      System.out.printf("%nAll times in ms, launch is process start to JVM start, total is process start to first put%n");
+      System.out.printf("%-10s %-14s %10s %10s %10s %10s%n", "variant", "metric", "mean", "min", "median", "max");
+      double baseline = -1;
+      for (Map.Entry<String, List<Map<String, Long>>> variant : results.entrySet()) {
+         List<Map<String, Long>> runs = variant.getValue();
+         if (runs.isEmpty()) {
+            System.out.printf("%-10s no successful run%n", variant.getKey());
+            continue;
+         }
+         for (String metric : METRICS) {
+            if (!runs.get(0).containsKey(metric)) continue;
+            long[] values = new long[runs.size()];
+            double sum = 0;
+            for (int i = 0; i < values.length; i++) {
+               values[i] = runs.get(i).get(metric);
+               sum += values[i];
+            }
+            Arrays.sort(values);
+            final double mean = sum / values.length;
+            System.out.printf("%-10s %-14s %10.1f %10s %10s %10s%n", variant.getKey(), metric, mean, values[0],
+                  values[values.length / 2], values[values.length - 1]);
+            if (metric.equals("total")) {
+               if (baseline < 0)
+                  baseline = mean;
+               else
+                  System.out.printf("%-10s %-14s %+9.1f%% vs %s%n", variant.getKey(), "total delta", (mean - baseline) * 100 / baseline,
+                        results.keySet().iterator().next());
+            }
+         }
+      }
+   }
+
+   /**
+    * Runs in the fresh JVM: starts a cache manager, waits for the cluster and puts one entry, then prints the
+    * timings on a single line for the launcher.
+    */
+   private static void probe() {
+      final RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+      final long jvmStart = runtime.getStartTime();
+      final long main = System.currentTimeMillis() - jvmStart;
+
+      DefaultCacheManager cm = new DefaultCacheManager(globalConfiguration(), configuration());
+      try {
+         final long cacheManager = System.currentTimeMillis() - jvmStart;
+         Cache<String, String> cache = cm.getCache();
+         final long getCache = System.currentTimeMillis() - jvmStart;
+         long join = -1;
+         if (isClustered()) {
+            while (cm.getMembers().size() < 2) Thread.sleep(1);
+            join = System.currentTimeMillis() - jvmStart;
+         }
+         cache.put("key", "value");
+         final long firstPut = System.currentTimeMillis() - jvmStart;
+
+         final CompilationMXBean jit = ManagementFactory.getCompilationMXBean();
+         final long jitMillis = jit != null && jit.isCompilationTimeMonitoringSupported() ? jit.getTotalCompilationTime() : -1;
+         final int classes = ManagementFactory.getClassLoadingMXBean().getLoadedClassCount();
+         System.out.println(RESULT_PREFIX + "jvmStart=" + jvmStart + " main=" + main + " cacheManager=" + cacheManager
+               + " getCache=" + getCache + (join < 0 ? "" : " join=" + join) + " firstPut=" + firstPut
+               + " classes=" + classes + " jitMillis=" + jitMillis);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } finally {
+         cm.stop();
+      }
+   }
+
+   private static GlobalConfiguration globalConfiguration() {
+      if (!isClustered()) return GlobalConfiguration.getNonClusteredDefault();
+      GlobalConfiguration gc = new GlobalConfiguration();
+      gc.setTransportClass(JGroupsTransport.class.getName());
+      gc.getTransportProperties().setProperty("configurationFile", JGROUPS_CONF);
+      return gc;
+   }
+
+   private static Configuration configuration() {
+      Configuration c = new Configuration();
+      if (MODE.equals("local")) {
+         c.setCacheMode(Configuration.CacheMode.LOCAL);
+      } else if (MODE.equals("repl")) {
+         c.setCacheMode(Configuration.CacheMode.REPL_SYNC);
+      } else if (MODE.equals("dist")) {
+         c.setCacheMode(Configuration.CacheMode.DIST_SYNC);
+      } else {
+         throw new IllegalArgumentException("Unknown mode " + MODE + ", expected local, repl or dist");
+      }
+      return c;
+   }
+}
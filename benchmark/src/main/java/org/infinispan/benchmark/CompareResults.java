@@ -0,0 +1,231 @@
+package org.infinispan.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compares result sets written by {@link ResultsWriter}, e.g. the runs of two Infinispan versions:
+ * <pre>
+ *    java -cp ... org.infinispan.benchmark.CompareResults results/5.1.0.CR3 results/5.1.1.FINAL
+ * </pre>
+ * Each argument is a result set: a results file, or a directory whose results files are all taken as
+ * repetitions of the same run. Every set is compared with the first one: for each metric the mean over
+ * the measured ticks is reported with its 95% confidence interval, together with the relative delta and
+ * the confidence interval of that delta (Welch's t-test). A metric regresses when the whole confidence
+ * interval of its delta is worse than bench.regressionThresholdPercent (default 5%); the exit code is 1 if
+ * anything regressed, so the comparison can gate a version bump.
+ * <p>
+ * Consecutive ticks of a run are not fully independent, so the intervals are somewhat optimistic: prefer
+ * several short runs per set over a single long one.
+ */
+public class CompareResults {
+
+   private static final double THRESHOLD_PERCENT = Double.parseDouble(System.getProperty("bench.regressionThresholdPercent", "5"));
+
+   /**
+    * Metrics compared, with whether higher values are better.
+    */
+   private static final Map<String, Boolean> METRICS = new LinkedHashMap<String, Boolean>();
+
+   /**
+    * Comments of the results files which are measured rather than configured, so expected to differ.
+    */
+   private static final Set<String> MEASURED = new HashSet<String>(Arrays.asList("version", "started", "warmup_s", "warmup_end",
+         "bytes_sent_per_op", "marshalled_bytes_per_value", "marshall_ns_per_value", "unmarshall_ns_per_value"));
+
+   static {
+      METRICS.put("reads_per_s", true);
+      METRICS.put("writes_per_s", true);
+      for (String op : ResultsWriter.OPERATIONS) {
+         for (String p : new String[] { "p50", "p99", "p999" }) {
+            METRICS.put(op + "_" + p + "_us", false);
+         }
+      }
+   }
+
+   public static void main(String[] args) throws IOException {
+      if (args.length < 2) {
+         System.out.println("Usage: CompareResults <baseline file or dir> <other file or dir> [<other file or dir> ...]");
+         System.exit(2);
+      }
+      List<ResultSet> sets = new ArrayList<ResultSet>();
+      for (String arg : args) {
+         sets.add(ResultSet.load(new File(arg)));
+      }
+      boolean regression = false;
+      ResultSet baseline = sets.get(0);
+      for (int i = 1; i < sets.size(); i++) {
+         regression |= compare(baseline, sets.get(i));
+      }
+      System.out.println(regression ? "REGRESSION DETECTED" : "No regression beyond " + THRESHOLD_PERCENT + "%");
+      System.exit(regression ? 1 : 0);
+   }
+
+   private static boolean compare(ResultSet baseline, ResultSet other) {
+      System.out.printf("%n%s (%s, %s runs) vs baseline %s (%s, %s runs)%n", other.name, other.version(), other.runs,
+            baseline.name, baseline.version(), baseline.runs);
+      for (String key : baseline.configuration.keySet()) {
+         String a = baseline.configuration.get(key);
+         String b = other.configuration.get(key);
+         if (!MEASURED.contains(key) && b != null && !a.equals(b))
+            System.out.printf("  WARNING: %s differs: %s vs %s%n", key, b, a);
+      }
+      System.out.printf("  %-24s %22s %22s %10s %22s%n", "metric", "baseline (95% CI)", "this (95% CI)", "delta", "delta 95% CI");
+      boolean regression = false;
+      for (Map.Entry<String, Boolean> metric : METRICS.entrySet()) {
+         Sample base = baseline.sample(metric.getKey());
+         Sample sample = other.sample(metric.getKey());
+         if (base.n < 2 || sample.n < 2 || base.mean() == 0) continue;
+
+         final double diff = sample.mean() - base.mean();
+         final double se = Math.sqrt(base.variance() / base.n + sample.variance() / sample.n);
+         final double t = tQuantile(welchDegreesOfFreedom(base, sample));
+         final double low = (diff - t * se) / base.mean() * 100;
+         final double high = (diff + t * se) / base.mean() * 100;
+         final boolean higherIsBetter = metric.getValue();
+         final boolean regressed = higherIsBetter ? high < -THRESHOLD_PERCENT : low > THRESHOLD_PERCENT;
+         regression |= regressed;
+         System.out.printf("  %-24s %22s %22s %9.1f%% %22s%s%n", metric.getKey(), base, sample, diff / base.mean() * 100,
+               String.format("[%.1f%%, %.1f%%]", low, high), regressed ? "  REGRESSION" : "");
+      }
+      return regression;
+   }
+
+   private static double welchDegreesOfFreedom(Sample a, Sample b) {
+      final double va = a.variance() / a.n;
+      final double vb = b.variance() / b.n;
+      final double denominator = va * va / (a.n - 1) + vb * vb / (b.n - 1);
+      return denominator == 0 ? a.n + b.n - 2 : (va + vb) * (va + vb) / denominator;
+   }
+
+   private static final double[] T_975 = { 12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+         2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086, 2.080, 2.074, 2.069, 2.064, 2.060,
+         2.056, 2.052, 2.048, 2.045, 2.042 };
+
+   /**
+    * Two-sided 95% quantile of Student's t distribution.
+    */
+   static double tQuantile(double degreesOfFreedom) {
+      final int df = (int) Math.floor(degreesOfFreedom);
+      if (df < 1) return T_975[0];
+      if (df <= T_975.length) return T_975[df - 1];
+      if (df <= 60) return 2.000;
+      if (df <= 120) return 1.980;
+      return 1.960;
+   }
+
+   /**
+    * Values of one metric over all the measured ticks of a result set.
+    */
+   static final class Sample {
+      int n;
+      double sum;
+      double sumOfSquares;
+
+      void add(double value) {
+         n++;
+         sum += value;
+         sumOfSquares += value * value;
+      }
+
+      double mean() {
+         return n == 0 ? 0 : sum / n;
+      }
+
+      double variance() {
+         return n < 2 ? 0 : Math.max(0, (sumOfSquares - sum * sum / n) / (n - 1));
+      }
+
+      double halfWidth() {
+         return n < 2 ? 0 : tQuantile(n - 1) * Math.sqrt(variance() / n);
+      }
+
+      public String toString() {
+         return String.format("%.1f +/- %.1f", mean(), halfWidth());
+      }
+   }
+
+   /**
+    * The measured ticks of one or more results files.
+    */
+   static final class ResultSet {
+      final String name;
+      final Map<String, String> configuration = new LinkedHashMap<String, String>();
+      final Map<String, Sample> samples = new HashMap<String, Sample>();
+      int runs;
+
+      private ResultSet(String name) {
+         this.name = name;
+      }
+
+      static ResultSet load(File file) throws IOException {
+         ResultSet set = new ResultSet(file.getName());
+         File[] files = file.isDirectory() ? file.listFiles() : new File[] { file };
+         Arrays.sort(files);
+         for (File f : files) {
+            if (f.isFile() && f.getName().endsWith(".csv")) set.read(f);
+         }
+         if (set.runs == 0) throw new IllegalArgumentException("No results file found in " + file);
+         return set;
+      }
+
+      String version() {
+         String version = configuration.get("version");
+         return version == null ? "unknown version" : version;
+      }
+
+      Sample sample(String metric) {
+         Sample sample = samples.get(metric);
+         return sample == null ? new Sample() : sample;
+      }
+
+      private void read(File f) throws IOException {
+         runs++;
+         BufferedReader reader = new BufferedReader(new FileReader(f));
+         try {
+            String[] columns = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+               if (line.startsWith("# ")) {
+                  int eq = line.indexOf('=');
+                  if (eq > 0 && !configuration.containsKey(line.substring(2, eq)))
+                     configuration.put(line.substring(2, eq), line.substring(eq + 1));
+               } else if (columns == null) {
+                  columns = line.split(",");
+               } else {
+                  String[] values = line.split(",");
+                  if (!ResultsWriter.PHASE_MEASURE.equals(values[0])) continue;
+                  for (int i = 1; i < values.length && i < columns.length; i++) {
+                     if (!METRICS.containsKey(columns[i])) continue;
+                     // latency percentiles are meaningless in ticks without any such operation
+                     if (columns[i].endsWith("_us") && isZeroCount(columns, values, columns[i])) continue;
+                     Sample sample = samples.get(columns[i]);
+                     if (sample == null) samples.put(columns[i], sample = new Sample());
+                     sample.add(Double.parseDouble(values[i]));
+                  }
+               }
+            }
+         } finally {
+            reader.close();
+         }
+      }
+
+      private static boolean isZeroCount(String[] columns, String[] values, String column) {
+         String countColumn = column.substring(0, column.indexOf('_')) + "_count";
+         for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equals(countColumn)) return Long.parseLong(values[i]) == 0;
+         }
+         return false;
+      }
+   }
+}
@@ -0,0 +1,114 @@
+package org.infinispan.benchmark;
+
+import org.infinispan.Cache;
+import org.infinispan.config.Configuration;
+import org.infinispan.config.GlobalConfiguration;
+import org.infinispan.eviction.EvictionStrategy;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Eviction overhead and effectiveness: bench.evictionThreads threads (default the number of cores) read
+ * through a local cache bounded to bench.evictionCapacity entries (default 10000) from a working set of
+ * bench.evictionWorkingSet keys (default 50000). A miss waits bench.missPenaltyMicros (default 100, a
+ * backing store read) and then puts the value, of bench.evictionValueSize bytes (default 1024).
+ * <p>
+ * Every eviction strategy of bench.evictionStrategies (default NONE, LRU, LIRS and UNORDERED; NONE is unbounded)
+ * runs against every key distribution of bench.evictionPatterns (default uniform, zipf, sequential i.e. a
+ * looping scan, and shifting, a moving hotspot; see KeySelector for their settings), each on a new cache for
+ * bench.evictionWarmupSeconds (default 10) and then bench.evictionSeconds (default 30). Reported are the
+ * throughput, hit ratio, latency of the whole read-through and bytes allocated per operation.
+ */
+public class EvictionTest {
+
+   private static final String STRATEGIES = System.getProperty("bench.evictionStrategies", "NONE,LRU,LIRS,UNORDERED");
+   private static final String PATTERNS = System.getProperty("bench.evictionPatterns", "uniform,zipf,sequential,shifting");
+   private static final int CAPACITY = Integer.getInteger("bench.evictionCapacity", 10000);
+   private static final int WORKING_SET = Integer.getInteger("bench.evictionWorkingSet", 50000);
+   private static final int THREADS = Integer.getInteger("bench.evictionThreads", Runtime.getRuntime().availableProcessors());
+   private static final int VALUE_SIZE = Integer.getInteger("bench.evictionValueSize", 1024);
+   private static final long MISS_PENALTY_NANOS = TimeUnit.MICROSECONDS.toNanos(Long.getLong("bench.missPenaltyMicros", 100));
+   private static final int WARMUP_SECONDS = Integer.getInteger("bench.evictionWarmupSeconds", 10);
+   private static final int MEASURE_SECONDS = Integer.getInteger("bench.evictionSeconds", 30);
+
+   private static final byte[][] VALUES = TimedWorker.values(VALUE_SIZE);
+
+   public static void main(String[] args) throws Exception {
+      final KeySpace keys = TimedWorker.keys(WORKING_SET);
+      System.out.printf("Read-through of %s keys into %s entries, %s threads, values of %s bytes, %s us per miss, %ss warmup and %ss per run%n",
+            WORKING_SET, CAPACITY, THREADS, VALUE_SIZE, TimeUnit.NANOSECONDS.toMicros(MISS_PENALTY_NANOS), WARMUP_SECONDS, MEASURE_SECONDS);
+      for (String pattern : PATTERNS.split(",")) {
+         for (String strategy : STRATEGIES.split(",")) {
+            run(EvictionStrategy.valueOf(strategy.trim().toUpperCase()), pattern.trim(), keys);
+         }
+         System.out.println();
+      }
+   }
+
+   private static void run(EvictionStrategy strategy, String pattern, KeySpace keys) throws InterruptedException {
+      Configuration c = new Configuration();
+      c.setCacheMode(Configuration.CacheMode.LOCAL);
+      c.setEvictionStrategy(strategy);
+      if (strategy != EvictionStrategy.NONE) c.setEvictionMaxEntries(CAPACITY);
+      c.setConcurrencyLevel(THREADS * 4);
+      EmbeddedCacheManager cm = new DefaultCacheManager(GlobalConfiguration.getNonClusteredDefault(), c);
+      try {
+         Cache<String, byte[]> cache = cm.getCache();
+         List<Reader> readers = new ArrayList<Reader>(THREADS);
+         for (int t = 0; t < THREADS; t++) {
+            Random random = new Random();
+            readers.add(new Reader(cache, keys, KeySelector.create(pattern, keys.size(), random), random));
+         }
+         TimedWorker.startAll(readers);
+         Thread.sleep(TimeUnit.SECONDS.toMillis(WARMUP_SECONDS));
+         final long nanos = TimedWorker.measure(readers, MEASURE_SECONDS);
+
+         long hits = 0, ops = 0, allocated = 0;
+         LatencyHistogram latencies = new LatencyHistogram();
+         for (Reader reader : readers) {
+            hits += reader.hits;
+            ops += reader.ops;
+            allocated = allocated < 0 || reader.allocated < 0 ? -1 : allocated + reader.allocated;
+            latencies.add(reader.latencies);
+         }
+         System.out.printf("%-10s %-9s %,12.0f ops/s  hit ratio %5.1f%%  latency (us) p50 %s p99 %s p99.9 %s  %s bytes/op  %s entries%n", pattern,
+               strategy, ops * 1e9 / nanos, ops == 0 ? 0 : hits * 100.0 / ops, latencies.getValueAtPercentile(50) / 1000,
+               latencies.getValueAtPercentile(99) / 1000, latencies.getValueAtPercentile(99.9) / 1000,
+               allocated < 0 || ops == 0 ? "n/a" : String.valueOf(allocated / ops), cache.size());
+      } finally {
+         cm.stop();
+      }
+   }
+
+   /**
+    * Reads through the cache: a miss waits for the backing store and puts the value.
+    */
+   private static final class Reader extends TimedWorker {
+      private final Cache<String, byte[]> cache;
+      long hits;
+
+      Reader(Cache<String, byte[]> cache, KeySpace keys, KeySelector selector, Random random) {
+         super("EvictionTest-reader", keys, selector, random);
+         this.cache = cache;
+      }
+
+      protected void operate(int index, String key) {
+         if (cache.get(key) != null) {
+            hits++;
+         } else {
+            LockSupport.parkNanos(MISS_PENALTY_NANOS);
+            cache.put(key, VALUES[index % VALUES.length]);
+         }
+      }
+
+      protected void reset() {
+         hits = 0;
+      }
+   }
+}
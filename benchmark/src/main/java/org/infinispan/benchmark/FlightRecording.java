@@ -0,0 +1,236 @@
+package org.infinispan.benchmark;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Java Flight Recorder recording of the measured phase only, enabled with bench.jfr=true: it's started when
+ * the warmup ends and stopped when the test ends, through the DiagnosticCommand MBean (Java 11+, or 8u262+ and
+ * Oracle JDK 8 with -XX:+UnlockCommercialFeatures), with the bench.jfrSettings template (default "profile":
+ * CPU samples, allocation, lock contention and GC).
+ * <p>
+ * The recording is saved next to the results file, along with a summary of where the time went: the top
+ * bench.jfrTop (default 20) methods on CPU (top frames of the execution samples), contended monitors and
+ * parked-on locks, allocating classes, and the GC pauses. The summary needs the jdk.jfr.consumer API, which is
+ * looked up reflectively as the benchmark has to run on older JVMs too; without it, use "jfr print" on the
+ * recording.
+ */
+final class FlightRecording {
+
+   static final boolean ENABLED = Boolean.getBoolean("bench.jfr");
+   private static final String SETTINGS = System.getProperty("bench.jfrSettings", "profile");
+   private static final int TOP = Integer.getInteger("bench.jfrTop", 20);
+   private static final String NAME = "infinispan-benchmark";
+
+   private final File file;
+
+   private FlightRecording(File file) {
+      this.file = file;
+   }
+
+   /**
+    * @param file where the recording is saved once stopped; the summary goes next to it
+    * @return the running recording, or null if this JVM can't record
+    */
+   static FlightRecording start(File file) {
+      try {
+         diagnosticCommand("jfrStart", "name=" + NAME, "settings=" + SETTINGS);
+         System.out.printf("  Flight recording started (%s settings)%n", SETTINGS);
+         return new FlightRecording(file);
+      } catch (Exception e) {
+         System.out.println("  Unable to start a flight recording, needs Java 11 or later (or a JDK 8 with JFR): " + e);
+         return null;
+      }
+   }
+
+   /**
+    * Stops the recording, saves it and writes its summary.
+    */
+   void stop() {
+      try {
+         diagnosticCommand("jfrStop", "name=" + NAME, "filename=" + file.getAbsolutePath());
+      } catch (Exception e) {
+         System.out.println("  Unable to stop the flight recording: " + e);
+         return;
+      }
+      System.out.println("  Flight recording saved to " + file);
+      final String summary;
+      try {
+         summary = summarize(file);
+      } catch (ClassNotFoundException e) {
+         System.out.println("  No jdk.jfr.consumer API in this JVM to summarize the recording, see: jfr print " + file);
+         return;
+      } catch (Exception e) {
+         System.out.println("  Unable to summarize the flight recording: " + e);
+         return;
+      }
+      File summaryFile = new File(file.getParentFile(), file.getName().replaceFirst("\\.jfr$", "") + "-profile.txt");
+      try {
+         PrintWriter out = new PrintWriter(new FileWriter(summaryFile));
+         try {
+            out.print(summary);
+         } finally {
+            out.close();
+         }
+         System.out.println("  Profile summary written to " + summaryFile);
+      } catch (IOException e) {
+         System.out.println("  Unable to write the profile summary: " + e);
+      }
+      System.out.print(summary);
+   }
+
+   private static void diagnosticCommand(String operation, String... arguments) throws Exception {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.invoke(new ObjectName("com.sun.management:type=DiagnosticCommand"), operation, new Object[] { arguments },
+            new String[] { String[].class.getName() });
+   }
+
+   /**
+    * Reads the events of the recording one at a time, through jdk.jfr.consumer.RecordingFile.
+    */
+   private static String summarize(File file) throws Exception {
+      final Class<?> recordingFile = Class.forName("jdk.jfr.consumer.RecordingFile");
+      final Object path = File.class.getMethod("toPath").invoke(file);
+      final Object events = recordingFile.getConstructor(Class.forName("java.nio.file.Path")).newInstance(path);
+      final Method hasMoreEvents = recordingFile.getMethod("hasMoreEvents");
+      final Method readEvent = recordingFile.getMethod("readEvent");
+      final Reflection r = new Reflection();
+      final Tally cpu = new Tally(), monitors = new Tally(), parks = new Tally(), allocations = new Tally();
+      long samples = 0, gcs = 0, gcPauseNanos = 0, monitorNanos = 0, parkNanos = 0, allocated = 0;
+      try {
+         while ((Boolean) hasMoreEvents.invoke(events)) {
+            final Object event = readEvent.invoke(events);
+            final String type = (String) r.call(r.call(event, "getEventType"), "getName");
+            if (type.equals("jdk.ExecutionSample")) {
+               samples++;
+               final Object stackTrace = r.call(event, "getStackTrace");
+               final List<?> frames = stackTrace == null ? null : (List<?>) r.call(stackTrace, "getFrames");
+               if (frames != null && !frames.isEmpty()) {
+                  final Object method = r.call(frames.get(0), "getMethod");
+                  cpu.add(r.call(r.call(method, "getType"), "getName") + "." + r.call(method, "getName"), 1);
+               }
+            } else if (type.equals("jdk.JavaMonitorEnter")) {
+               final long nanos = r.nanos(event);
+               monitorNanos += nanos;
+               monitors.add(r.className(event, "monitorClass"), nanos);
+            } else if (type.equals("jdk.ThreadPark")) {
+               final long nanos = r.nanos(event);
+               parkNanos += nanos;
+               parks.add(r.className(event, "parkedClass"), nanos);
+            } else if (type.equals("jdk.ObjectAllocationSample") || type.equals("jdk.ObjectAllocationInNewTLAB")
+                  || type.equals("jdk.ObjectAllocationOutsideTLAB")) {
+               // the sample event, from Java 16, replaces the TLAB ones in the default templates
+               final String field = type.equals("jdk.ObjectAllocationSample") ? "weight"
+                     : type.equals("jdk.ObjectAllocationInNewTLAB") ? "tlabSize" : "allocationSize";
+               final long bytes = ((Number) r.call(event, "getValue", field)).longValue();
+               allocated += bytes;
+               allocations.add(r.className(event, "objectClass"), bytes);
+            } else if (type.equals("jdk.GarbageCollection")) {
+               gcs++;
+               gcPauseNanos += ((Number) r.call(r.call(event, "getValue", "sumOfPauses"), "toNanos")).longValue();
+            }
+         }
+      } finally {
+         recordingFile.getMethod("close").invoke(events);
+      }
+
+      StringWriter summary = new StringWriter();
+      PrintWriter out = new PrintWriter(summary);
+      out.printf("  Hot methods (%s execution samples, top frames):%n", samples);
+      cpu.print(out, samples, "samples");
+      out.printf("  Contended monitors (%.1f ms blocked):%n", monitorNanos / 1e6);
+      monitors.print(out, monitorNanos, "ns");
+      out.printf("  Parked on (%.1f ms parked):%n", parkNanos / 1e6);
+      parks.print(out, parkNanos, "ns");
+      out.printf("  Allocating classes (%s sampled):%n", StartupSpeedTest.format(allocated));
+      allocations.print(out, allocated, "bytes");
+      out.printf("  Garbage collections: %s, %.1f ms of pauses%n", gcs, gcPauseNanos / 1e6);
+      out.flush();
+      return summary.toString();
+   }
+
+   /**
+    * Totals per key, printed as the TOP largest.
+    */
+   private static final class Tally {
+      private final Map<String, long[]> totals = new HashMap<String, long[]>();
+
+      void add(String key, long amount) {
+         long[] total = totals.get(key);
+         if (total == null) totals.put(key, total = new long[1]);
+         total[0] += amount;
+      }
+
+      void print(PrintWriter out, long sum, String unit) {
+         List<Map.Entry<String, long[]>> entries = new ArrayList<Map.Entry<String, long[]>>(totals.entrySet());
+         Collections.sort(entries, new Comparator<Map.Entry<String, long[]>>() {
+            public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+               return a.getValue()[0] < b.getValue()[0] ? 1 : a.getValue()[0] > b.getValue()[0] ? -1 : 0;
+            }
+         });
+         for (int i = 0; i < Math.min(TOP, entries.size()); i++) {
+            final long total = entries.get(i).getValue()[0];
+            out.printf("    %5.1f%%  %,15d %-7s %s%n", sum == 0 ? 0 : total * 100.0 / sum, total, unit, entries.get(i).getKey());
+         }
+      }
+   }
+
+   /**
+    * Calls public methods of the jdk.jfr.consumer objects, caching the lookups: a recording holds millions of events.
+    */
+   private static final class Reflection {
+      private final Map<String, Method> methods = new HashMap<String, Method>();
+
+      Object call(Object target, String name, Object... args) throws Exception {
+         final String key = target.getClass().getName() + '#' + name;
+         Method method = methods.get(key);
+         if (method == null) {
+            Class<?>[] types = new Class<?>[args.length];
+            for (int i = 0; i < args.length; i++) {
+               types[i] = args[i].getClass();
+            }
+            method = publicMethod(target.getClass(), name, types);
+            methods.put(key, method);
+         }
+         return method.invoke(target, args);
+      }
+
+      long nanos(Object event) throws Exception {
+         return ((Number) call(call(event, "getDuration"), "toNanos")).longValue();
+      }
+
+      String className(Object event, String field) throws Exception {
+         final Object recordedClass = call(event, "getValue", field);
+         return recordedClass == null ? "(unknown)" : (String) call(recordedClass, "getName");
+      }
+
+      /**
+       * The method as declared by a public class or interface: the runtime classes of the events may not be
+       * accessible.
+       */
+      private static Method publicMethod(Class<?> type, String name, Class<?>[] types) throws NoSuchMethodException {
+         for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            if (!java.lang.reflect.Modifier.isPublic(c.getModifiers())) continue;
+            try {
+               return c.getMethod(name, types);
+            } catch (NoSuchMethodException e) {
+               // look further up
+            }
+         }
+         throw new NoSuchMethodException(type.getName() + "." + name);
+      }
+   }
+}
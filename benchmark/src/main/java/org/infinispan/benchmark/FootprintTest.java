@@ -0,0 +1,239 @@
+package org.infinispan.benchmark;
+
+import org.infinispan.AdvancedCache;
+import org.infinispan.config.Configuration;
+import org.infinispan.config.GlobalConfiguration;
+import org.infinispan.eviction.EvictionStrategy;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.remoting.transport.jgroups.JGroupsTransport;
+import org.infinispan.transaction.lookup.DummyTransactionManagerLookup;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import javax.transaction.TransactionManager;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap cost of the cache entries: fills caches with bench.footprintEntries entries (default 10^3 to 10^7) for
+ * each of bench.footprintKeySizes and bench.footprintValueSizes (in bytes), and reports the retained heap per
+ * entry and the overhead beyond the raw key and value bytes.
+ * <p>
+ * bench.footprintModes lists the cache configurations, each a mode among local, repl and dist optionally
+ * followed by -l1, -tx and -eviction, e.g. "dist-l1-tx". Clustered modes run bench.footprintNodes nodes
+ * (default 3) in this JVM over bench-jgroups.xml, so the retained heap covers all the copies of an entry;
+ * it's also reported per copy, i.e. per entry held by a node: all nodes in repl, bench.footprintNumOwners
+ * (default 2) in dist, and all nodes in dist with L1, as every node reads all the keys once the cache is filled.
+ * Eviction uses bench.footprintEvictionStrategy (default LRU) bounded to twice the number of entries, so that
+ * the eviction structures are measured without evicting anything: the bound is split across the segments of
+ * the container, which may not fill evenly. Cells where the nodes don't hold all the copies are skipped.
+ * <p>
+ * Keys are ASCII Strings and values byte[], so the raw bytes of an entry are the key length plus the value
+ * length; on JVMs without compact Strings the second byte of each key char shows up as overhead. Cells whose
+ * estimated size doesn't fit in 70% of the max heap are skipped.
+ * <p>
+ * Full collections of HotSpot leave up to MarkSweepDeadRatio percent of dead objects uncompacted, which then
+ * count as retained; run with -XX:MarkSweepDeadRatio=0 for exact figures.
+ */
+public class FootprintTest {
+
+   private static final String ENTRIES = System.getProperty("bench.footprintEntries", "1000,10000,100000,1000000,10000000");
+   private static final String KEY_SIZES = System.getProperty("bench.footprintKeySizes", "16,64");
+   private static final String VALUE_SIZES = System.getProperty("bench.footprintValueSizes", "16,256,4096");
+   private static final String MODES = System.getProperty("bench.footprintModes", "local,local-tx,local-eviction,repl,repl-tx,dist,dist-l1");
+   private static final int NODES = Integer.getInteger("bench.footprintNodes", 3);
+   private static final int NUM_OWNERS = Integer.getInteger("bench.footprintNumOwners", 2);
+   private static final String EVICTION_STRATEGY = System.getProperty("bench.footprintEvictionStrategy", "LRU");
+   private static final String JGROUPS_CONF = System.getProperty("bench.jgroups_conf", "bench-jgroups.xml");
+
+   private static final int BATCH = 1000; //entries per putAll, and per transaction
+   private static final int ESTIMATED_OVERHEAD = 150; //bytes per copy, only used to skip cells which can't fit
+
+   public static void main(String[] args) throws Exception {
+      System.setProperty("jgroups.bind_addr", "127.0.0.1");
+      System.setProperty("java.net.preferIPv4Stack", "true");
+      NetworkProfile.apply();
+      System.out.printf("Footprint of %s entries, keys of %s bytes, values of %s bytes, modes %s, max heap %s%n", ENTRIES, KEY_SIZES,
+            VALUE_SIZES, MODES, StartupSpeedTest.format(Runtime.getRuntime().maxMemory()));
+      warnAboutDeadWood();
+      for (String mode : MODES.split(",")) {
+         mode = mode.trim();
+         for (int entries : parse(ENTRIES)) {
+            if (!measure(mode, entries)) break; // larger counts won't fit either
+         }
+      }
+   }
+
+   private static void warnAboutDeadWood() {
+      try {
+         HotSpotDiagnosticMXBean hotSpot = ManagementFactory.newPlatformMXBeanProxy(ManagementFactory.getPlatformMBeanServer(),
+               "com.sun.management:type=HotSpotDiagnostic", HotSpotDiagnosticMXBean.class);
+         String deadRatio = hotSpot.getVMOption("MarkSweepDeadRatio").getValue();
+         if (!"0".equals(deadRatio))
+            System.out.printf("WARNING: MarkSweepDeadRatio is %s, dead objects may count as retained; run with -XX:MarkSweepDeadRatio=0%n", deadRatio);
+      } catch (Exception e) {
+         // not a HotSpot JVM
+      }
+   }
+
+   private static int[] parse(String list) {
+      String[] values = list.split(",");
+      int[] parsed = new int[values.length];
+      for (int i = 0; i < values.length; i++) {
+         parsed[i] = Integer.parseInt(values[i].trim());
+      }
+      return parsed;
+   }
+
+   /**
+    * Starts the caches of the given mode and measures the footprint of all the key and value sizes.
+    *
+    * @return false if none of the sizes fit in the heap
+    */
+   private static boolean measure(String mode, int entries) throws Exception {
+      final String[] options = mode.split("-");
+      final String cacheMode = options[0];
+      boolean l1 = false, tx = false, eviction = false;
+      for (int i = 1; i < options.length; i++) {
+         if (options[i].equals("l1")) l1 = true;
+         else if (options[i].equals("tx")) tx = true;
+         else if (options[i].equals("eviction")) eviction = true;
+         else throw new IllegalArgumentException("Unknown option " + options[i] + " in mode " + mode + ", expected l1, tx or eviction");
+      }
+      final int nodes = cacheMode.equals("local") ? 1 : NODES;
+      final int copies = cacheMode.equals("dist") && !l1 ? Math.min(NUM_OWNERS, nodes) : nodes;
+
+      List<int[]> sizes = new ArrayList<int[]>();
+      for (int keySize : parse(KEY_SIZES)) {
+         for (int valueSize : parse(VALUE_SIZES)) {
+            final long estimate = (long) entries * copies * (keySize + valueSize + ESTIMATED_OVERHEAD);
+            if (estimate < Runtime.getRuntime().maxMemory() * 0.7)
+               sizes.add(new int[] { keySize, valueSize });
+            else
+               System.out.printf("%-16s key %4d B value %6d B %,11d entries: skipped, about %s needed%n", mode, keySize, valueSize, entries,
+                     StartupSpeedTest.format(estimate));
+         }
+      }
+      if (sizes.isEmpty()) return false;
+
+      List<EmbeddedCacheManager> managers = new ArrayList<EmbeddedCacheManager>(nodes);
+      List<AdvancedCache<Object, Object>> caches = new ArrayList<AdvancedCache<Object, Object>>(nodes);
+      try {
+         Configuration c = configuration(cacheMode, l1, tx, eviction, entries);
+         for (int n = 0; n < nodes; n++) {
+            EmbeddedCacheManager cm = new DefaultCacheManager(globalConfiguration(cacheMode), c.clone());
+            managers.add(cm);
+            caches.add(cm.getCache().getAdvancedCache());
+         }
+         for (int[] size : sizes) {
+            final int keySize = size[0], valueSize = size[1];
+            final long baseline = MemoryProbe.retainedHeap();
+            final long start = System.nanoTime();
+            fill(caches.get(0), entries, keySize, valueSize, tx);
+            final long fillNanos = System.nanoTime() - start;
+            if (l1) {
+               for (int n = 0; n < nodes; n++) {
+                  read(caches.get(n), entries, keySize);
+               }
+            }
+            final long retained = MemoryProbe.retainedHeap() - baseline;
+            long held = 0;
+            for (AdvancedCache<Object, Object> cache : caches) {
+               held += cache.size();
+            }
+            if (held != (long) entries * copies) {
+               System.out.printf("%-16s key %4d B value %6d B %,11d entries: skipped, the nodes hold %,d copies instead of %,d (evicted?)%n",
+                     mode, keySize, valueSize, entries, held, (long) entries * copies);
+               for (AdvancedCache<Object, Object> cache : caches) cache.clear();
+               continue;
+            }
+            final double perEntry = (double) retained / entries;
+            final double perCopy = perEntry / copies;
+            final int raw = keySize + valueSize;
+            System.out.printf("%-16s key %4d B value %6d B %,11d entries: %9.1f bytes retained per entry (%s copies), %9.1f per copy, "
+                  + "overhead %7.1f bytes per copy (%.0f%% of the raw bytes), filled in %s ms%n", mode, keySize, valueSize, entries,
+                  perEntry, copies, perCopy, perCopy - raw, (perCopy - raw) * 100 / raw, TimeUnit.NANOSECONDS.toMillis(fillNanos));
+            caches.get(0).clear();
+            if (l1) {
+               for (AdvancedCache<Object, Object> cache : caches) cache.clear();
+            }
+         }
+      } finally {
+         for (int n = managers.size() - 1; n >= 0; n--) {
+            managers.get(n).stop();
+         }
+      }
+      return true;
+   }
+
+   private static GlobalConfiguration globalConfiguration(String cacheMode) {
+      if (cacheMode.equals("local")) return GlobalConfiguration.getNonClusteredDefault();
+      GlobalConfiguration gc = new GlobalConfiguration();
+      gc.setTransportClass(JGroupsTransport.class.getName());
+      gc.getTransportProperties().setProperty("configurationFile", JGROUPS_CONF);
+      return gc;
+   }
+
+   private static Configuration configuration(String cacheMode, boolean l1, boolean tx, boolean eviction, int entries) {
+      Configuration c = new Configuration();
+      if (cacheMode.equals("local")) {
+         c.setCacheMode(Configuration.CacheMode.LOCAL);
+      } else if (cacheMode.equals("repl")) {
+         c.setCacheMode(Configuration.CacheMode.REPL_SYNC);
+      } else if (cacheMode.equals("dist")) {
+         c.setCacheMode(Configuration.CacheMode.DIST_SYNC);
+         c.setNumOwners(NUM_OWNERS);
+         c.setL1CacheEnabled(l1);
+      } else {
+         throw new IllegalArgumentException("Unknown mode " + cacheMode + ", expected local, repl or dist");
+      }
+      if (l1 && !cacheMode.equals("dist")) throw new IllegalArgumentException("L1 only applies to dist");
+      if (tx) c.setTransactionManagerLookupClass(DummyTransactionManagerLookup.class.getName());
+      if (eviction) {
+         c.setEvictionStrategy(EvictionStrategy.valueOf(EVICTION_STRATEGY.toUpperCase()));
+         c.setEvictionMaxEntries(entries * 2);
+      } else {
+         c.setEvictionStrategy(EvictionStrategy.NONE);
+      }
+      return c;
+   }
+
+   private static void fill(AdvancedCache<Object, Object> cache, int entries, int keySize, int valueSize, boolean tx) throws Exception {
+      final TransactionManager tm = tx ? cache.getTransactionManager() : null;
+      for (int from = 0; from < entries; from += BATCH) {
+         Map<Object, Object> batch = new HashMap<Object, Object>(BATCH * 2);
+         for (int i = from; i < Math.min(from + BATCH, entries); i++) {
+            batch.put(key(i, keySize), new byte[valueSize]);
+         }
+         if (tm != null) tm.begin();
+         cache.putAll(batch);
+         if (tm != null) tm.commit();
+      }
+   }
+
+   private static void read(AdvancedCache<Object, Object> cache, int entries, int keySize) {
+      for (int i = 0; i < entries; i++) {
+         cache.get(key(i, keySize));
+      }
+   }
+
+   /**
+    * A key of exactly the given number of ASCII chars: "k" followed by the zero padded index.
+    */
+   private static String key(int index, int keySize) {
+      char[] chars = new char[keySize];
+      int pos = keySize;
+      for (int i = index; pos > 1; i /= 10) {
+         chars[--pos] = (char) ('0' + i % 10);
+      }
+      chars[0] = 'k';
+      if (keySize < 11 && index >= Math.pow(10, keySize - 1))
+         throw new IllegalArgumentException("Keys of " + keySize + " chars can't hold " + index + " distinct keys");
+      return new String(chars);
+   }
+}
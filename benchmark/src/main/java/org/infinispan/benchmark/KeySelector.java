@@ -0,0 +1,166 @@
+package org.infinispan.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Picks the index of the next key to use out of a key space. Instances are owned by a single worker,
+ * so they can keep state and use the worker's own Random.
+ * <p>
+ * The distribution is chosen with bench.keyDistribution:
+ * <ul>
+ *    <li>uniform (default)</li>
+ *    <li>zipf: Zipfian with exponent bench.zipfExponent in (0, 1), default 0.99; lower indexes are hotter</li>
+ *    <li>hotspot: bench.hotspotOpsPercent % of the operations (default 90) on the first
+ *        bench.hotspotKeysPercent % of the keys (default 10)</li>
+ *    <li>shifting: a hotspot which moves on to the next keys every bench.hotspotShiftSeconds (default 10),
+ *        at the same time for all workers</li>
+ *    <li>sequential: a scan over all keys, starting from a random offset and wrapping around</li>
+ * </ul>
+ */
+abstract class KeySelector {
+
+   private static final String DISTRIBUTION = System.getProperty("bench.keyDistribution", "uniform");
+   private static final double ZIPF_EXPONENT = Double.parseDouble(System.getProperty("bench.zipfExponent", "0.99"));
+   private static final int HOTSPOT_OPS_PERCENT = Integer.getInteger("bench.hotspotOpsPercent", 90);
+   private static final int HOTSPOT_KEYS_PERCENT = Integer.getInteger("bench.hotspotKeysPercent", 10);
+   private static final int HOTSPOT_SHIFT_SECONDS = Integer.getInteger("bench.hotspotShiftSeconds", 10);
+
+   final int size;
+
+   private KeySelector(int size) {
+      this.size = size;
+   }
+
+   abstract int nextIndex(Random random);
+
+   static String describe() {
+      if ("zipf".equals(DISTRIBUTION)) return "zipf (exponent " + ZIPF_EXPONENT + ")";
+      if ("hotspot".equals(DISTRIBUTION)) return "hotspot (" + HOTSPOT_OPS_PERCENT + "% of ops on " + HOTSPOT_KEYS_PERCENT + "% of keys)";
+      if ("shifting".equals(DISTRIBUTION))
+         return "shifting hotspot (" + HOTSPOT_OPS_PERCENT + "% of ops on " + HOTSPOT_KEYS_PERCENT + "% of keys, moving every " + HOTSPOT_SHIFT_SECONDS + "s)";
+      return DISTRIBUTION;
+   }
+
+   /**
+    * @return a new selector following the configured distribution
+    */
+   static KeySelector create(int size, Random random) {
+      return create(DISTRIBUTION, size, random);
+   }
+
+   static KeySelector create(String distribution, int size, Random random) {
+      if ("uniform".equals(distribution)) return new Uniform(size);
+      if ("zipf".equals(distribution)) return new Zipfian(size, ZIPF_EXPONENT);
+      if ("hotspot".equals(distribution)) return new Hotspot(size, HOTSPOT_OPS_PERCENT, HOTSPOT_KEYS_PERCENT);
+      if ("shifting".equals(distribution))
+         return new ShiftingHotspot(size, HOTSPOT_OPS_PERCENT, HOTSPOT_KEYS_PERCENT, HOTSPOT_SHIFT_SECONDS * 1000L);
+      if ("sequential".equals(distribution)) return new Sequential(size, random.nextInt(size));
+      throw new IllegalArgumentException("Unknown key distribution: " + distribution);
+   }
+
+   static final class Uniform extends KeySelector {
+      Uniform(int size) {
+         super(size);
+      }
+
+      int nextIndex(Random random) {
+         return random.nextInt(size);
+      }
+   }
+
+   static final class Sequential extends KeySelector {
+      private int next;
+
+      Sequential(int size, int start) {
+         super(size);
+         this.next = start;
+      }
+
+      int nextIndex(Random random) {
+         int index = next;
+         next = index + 1 == size ? 0 : index + 1;
+         return index;
+      }
+   }
+
+   static final class Hotspot extends KeySelector {
+      private final int hotKeys;
+      private final double hotOpsFraction;
+
+      Hotspot(int size, int hotOpsPercent, int hotKeysPercent) {
+         super(size);
+         this.hotKeys = Math.max(1, Math.min(size, (int) ((long) size * hotKeysPercent / 100)));
+         this.hotOpsFraction = hotOpsPercent / 100.0;
+      }
+
+      int nextIndex(Random random) {
+         if (hotKeys == size || random.nextDouble() < hotOpsFraction) return random.nextInt(hotKeys);
+         return hotKeys + random.nextInt(size - hotKeys);
+      }
+   }
+
+   /**
+    * A hotspot moving on to the following keys every shiftMillis, wrapping around; the position only depends
+    * on the clock, so all workers agree on it.
+    */
+   static final class ShiftingHotspot extends KeySelector {
+      private final Hotspot hotspot;
+      private final long shiftMillis;
+
+      ShiftingHotspot(int size, int hotOpsPercent, int hotKeysPercent, long shiftMillis) {
+         super(size);
+         this.hotspot = new Hotspot(size, hotOpsPercent, hotKeysPercent);
+         this.shiftMillis = shiftMillis;
+      }
+
+      int nextIndex(Random random) {
+         final int offset = (int) (System.currentTimeMillis() / shiftMillis * hotspot.hotKeys % size);
+         final int index = hotspot.nextIndex(random) + offset;
+         return index >= size ? index - size : index;
+      }
+   }
+
+   /**
+    * Zipfian generator from Gray et al, "Quickly generating billion-record synthetic databases"; as in YCSB.
+    */
+   static final class Zipfian extends KeySelector {
+      // zeta(n) is O(n), share it among all the workers using the same key space
+      private static final Map<String, Double> ZETAS = new HashMap<String, Double>();
+
+      private final double alpha;
+      private final double zetan;
+      private final double eta;
+      private final double halfPowTheta;
+
+      Zipfian(int size, double theta) {
+         super(size);
+         if (theta <= 0 || theta >= 1) throw new IllegalArgumentException("Zipf exponent must be in (0, 1), was " + theta);
+         this.alpha = 1.0 / (1.0 - theta);
+         this.zetan = zeta(size, theta);
+         this.eta = (1 - Math.pow(2.0 / size, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+         this.halfPowTheta = 1.0 + Math.pow(0.5, theta);
+      }
+
+      int nextIndex(Random random) {
+         final double u = random.nextDouble();
+         final double uz = u * zetan;
+         if (uz < 1.0 || size == 1) return 0;
+         if (uz < halfPowTheta) return 1;
+         return Math.min(size - 1, (int) (size * Math.pow(eta * u - eta + 1, alpha)));
+      }
+
+      private static double zeta(int n, double theta) {
+         final String cacheKey = n + "/" + theta;
+         synchronized (ZETAS) {
+            Double cached = ZETAS.get(cacheKey);
+            if (cached != null) return cached;
+            double sum = 0;
+            for (int i = 1; i <= n; i++) sum += 1 / Math.pow(i, theta);
+            ZETAS.put(cacheKey, sum);
+            return sum;
+         }
+      }
+   }
+}
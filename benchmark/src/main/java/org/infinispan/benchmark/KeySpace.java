@@ -0,0 +1,45 @@
+package org.infinispan.benchmark;
+
+/**
+ * A key space of a fixed size. Small key spaces are materialized into an array up front; larger ones
+ * (above bench.materializeKeysLimit keys) only build the key String when it is needed, so key spaces in
+ * the millions don't fill the heap before the test even starts, at the cost of one String per operation.
+ */
+abstract class KeySpace {
+
+   private static final int MATERIALIZE_LIMIT = Integer.getInteger("bench.materializeKeysLimit", 100000);
+
+   private final int size;
+   private String[] keys;
+
+   KeySpace(int size) {
+      if (size <= 0) throw new IllegalArgumentException("A key space needs at least one key");
+      this.size = size;
+   }
+
+   /**
+    * Builds the key for the given index; must always return an equal key for the same index.
+    */
+   protected abstract String generate(int index);
+
+   final int size() {
+      return size;
+   }
+
+   final String key(int index) {
+      String[] materialized = keys;
+      return materialized != null ? materialized[index] : generate(index);
+   }
+
+   /**
+    * Materializes the keys if the key space is small enough; to be invoked once before the workers start.
+    */
+   final KeySpace init() {
+      if (size <= MATERIALIZE_LIMIT && keys == null) {
+         String[] k = new String[size];
+         for (int i = 0; i < size; i++) k[i] = generate(i);
+         keys = k;
+      }
+      return this;
+   }
+}
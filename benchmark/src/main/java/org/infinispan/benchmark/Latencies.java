@@ -0,0 +1,48 @@
+package org.infinispan.benchmark;
+
+import java.io.Serializable;
+
+/**
+ * Latency histograms per operation type, merged from all workers. In contention mode writer transactions are
+ * also split by whether they wrote a shared key, and lock acquisitions are timed. Read and write latencies are
+ * those of the work alone in every mode; in open loop mode the response times, from the intended start of the
+ * operation to the end of its commit, are kept apart.
+ */
+final class Latencies implements Serializable {
+
+   private static final long serialVersionUID = 1L;
+
+   final LatencyHistogram reads = new LatencyHistogram();
+   final LatencyHistogram writes = new LatencyHistogram();
+   final LatencyHistogram commits = new LatencyHistogram();
+   final LatencyHistogram rollbacks = new LatencyHistogram();
+   final LatencyHistogram conflicting = new LatencyHistogram();
+   final LatencyHistogram nonConflicting = new LatencyHistogram();
+   final LatencyHistogram lockWaits = new LatencyHistogram();
+   final LatencyHistogram readResponses = new LatencyHistogram();
+   final LatencyHistogram writeResponses = new LatencyHistogram();
+
+   void add(Latencies other) {
+      reads.add(other.reads);
+      writes.add(other.writes);
+      commits.add(other.commits);
+      rollbacks.add(other.rollbacks);
+      conflicting.add(other.conflicting);
+      nonConflicting.add(other.nonConflicting);
+      lockWaits.add(other.lockWaits);
+      readResponses.add(other.readResponses);
+      writeResponses.add(other.writeResponses);
+   }
+
+   void reset() {
+      reads.reset();
+      writes.reset();
+      commits.reset();
+      rollbacks.reset();
+      conflicting.reset();
+      nonConflicting.reset();
+      lockWaits.reset();
+      readResponses.reset();
+      writeResponses.reset();
+   }
+}
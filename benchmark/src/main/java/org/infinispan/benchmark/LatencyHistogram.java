@@ -0,0 +1,104 @@
+package org.infinispan.benchmark;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A compact, mergeable log-linear histogram of latencies expressed in nanoseconds, in the spirit of
+ * HdrHistogram: values are kept in power-of-two buckets each split in 64 linear sub-buckets, so any
+ * recorded value is reported within ~1.6% of its real value. Values above {@link #MAX_VALUE} (~68 seconds)
+ * are clamped.
+ * <p>
+ * Not threadsafe: see {@link LatencyRecorder} for the single-writer wrapper used by the workers.
+ */
+public final class LatencyHistogram implements Serializable {
+
+   private static final long serialVersionUID = 1L;
+
+   private static final int SUB_BUCKET_BITS = 7;
+   private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+   private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+   public static final long MAX_VALUE = (1L << 36) - 1;
+   private static final int COUNTS_LENGTH = indexOf(MAX_VALUE) + 1;
+
+   private final long[] counts = new long[COUNTS_LENGTH];
+   private long totalCount;
+   private long totalValue;
+   private long maxValue;
+
+   public void recordValue(long value) {
+      if (value < 0) value = 0;
+      else if (value > MAX_VALUE) value = MAX_VALUE;
+      counts[indexOf(value)]++;
+      totalCount++;
+      totalValue += value;
+      if (value > maxValue) maxValue = value;
+   }
+
+   public void add(LatencyHistogram other) {
+      final long[] otherCounts = other.counts;
+      for (int i = 0; i < COUNTS_LENGTH; i++) {
+         counts[i] += otherCounts[i];
+      }
+      totalCount += other.totalCount;
+      totalValue += other.totalValue;
+      if (other.maxValue > maxValue) maxValue = other.maxValue;
+   }
+
+   public void reset() {
+      Arrays.fill(counts, 0);
+      totalCount = 0;
+      totalValue = 0;
+      maxValue = 0;
+   }
+
+   public LatencyHistogram copy() {
+      LatencyHistogram copy = new LatencyHistogram();
+      copy.add(this);
+      return copy;
+   }
+
+   public long getTotalCount() {
+      return totalCount;
+   }
+
+   public long getMaxValue() {
+      return maxValue;
+   }
+
+   public double getMean() {
+      return totalCount == 0 ? 0 : (double) totalValue / totalCount;
+   }
+
+   /**
+    * @param percentile in the range [0, 100]
+    * @return the highest value equivalent to the requested percentile, or 0 when nothing was recorded
+    */
+   public long getValueAtPercentile(double percentile) {
+      if (totalCount == 0) return 0;
+      long countAtPercentile = (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * totalCount);
+      if (countAtPercentile < 1) countAtPercentile = 1;
+      long seen = 0;
+      for (int i = 0; i < COUNTS_LENGTH; i++) {
+         seen += counts[i];
+         if (seen >= countAtPercentile) {
+            return Math.min(highestValueAt(i), maxValue);
+         }
+      }
+      return maxValue;
+   }
+
+   private static int indexOf(long value) {
+      if (value < SUB_BUCKET_COUNT) return (int) value;
+      // shift so that (value >>> shift) falls in [SUB_BUCKET_HALF, SUB_BUCKET_COUNT)
+      int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+      return shift * SUB_BUCKET_HALF + (int) (value >>> shift);
+   }
+
+   private static long highestValueAt(int index) {
+      if (index < SUB_BUCKET_COUNT) return index;
+      int shift = index / SUB_BUCKET_HALF - 1;
+      long subBucket = index - shift * SUB_BUCKET_HALF;
+      return ((subBucket + 1) << shift) - 1;
+   }
+}
@@ -0,0 +1,22 @@
+package org.infinispan.benchmark;
+
+/**
+ * Per-thread latency recorder: each worker thread owns its recorders, so the lock is only ever
+ * contended when the progress monitor drains it, once per progress tick.
+ */
+public final class LatencyRecorder {
+
+   private final LatencyHistogram active = new LatencyHistogram();
+
+   public synchronized void record(long nanos) {
+      active.recordValue(nanos);
+   }
+
+   /**
+    * Moves everything recorded since the previous drain into the target histogram.
+    */
+   public synchronized void drainTo(LatencyHistogram target) {
+      target.add(active);
+      active.reset();
+   }
+}
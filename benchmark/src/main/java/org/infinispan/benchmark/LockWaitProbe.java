@@ -0,0 +1,114 @@
+package org.infinispan.benchmark;
+
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.commands.VisitableCommand;
+import org.infinispan.commands.control.LockControlCommand;
+import org.infinispan.commands.tx.PrepareCommand;
+import org.infinispan.commands.write.WriteCommand;
+import org.infinispan.context.InvocationContext;
+import org.infinispan.interceptors.base.CommandInterceptor;
+import org.infinispan.util.concurrent.TimeoutException;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures lock acquisition, for the contention mode of {@link Transactional}: two interceptors bracket the
+ * locking interceptor of the cache, so the time from entering the first to reaching the second is the time
+ * spent acquiring the locks of the command. Only commands which acquire locks are timed: prepares and
+ * explicit lock commands, and writes outside of transactions. Lock timeouts are counted where they happen,
+ * as they may reach the application as a plain rollback.
+ * <p>
+ * All caches of the JVM share the recorders, so with several nodes in one JVM the locks acquired on behalf
+ * of remote transactions are measured too.
+ */
+final class LockWaitProbe {
+
+   private static final LatencyRecorder[] STRIPES = new LatencyRecorder[Runtime.getRuntime().availableProcessors() * 4];
+   private static final AtomicLong TIMEOUTS = new AtomicLong();
+   private static final ThreadLocal<long[]> ENTERED = new ThreadLocal<long[]>() {
+      protected long[] initialValue() {
+         return new long[1];
+      }
+   };
+
+   static {
+      for (int i = 0; i < STRIPES.length; i++) {
+         STRIPES[i] = new LatencyRecorder();
+      }
+   }
+
+   private LockWaitProbe() {
+   }
+
+   static void install(Cache<?, ?> cache) {
+      AdvancedCache<?, ?> advanced = cache.getAdvancedCache();
+      for (CommandInterceptor interceptor : advanced.getInterceptorChain()) {
+         // LockingInterceptor up to 5.0, optimistic, pessimistic and non transactional variants from 5.1
+         if (interceptor.getClass().getSimpleName().endsWith("LockingInterceptor")) {
+            advanced.addInterceptorBefore(new Before(), interceptor.getClass());
+            advanced.addInterceptorAfter(new After(), interceptor.getClass());
+            return;
+         }
+      }
+      throw new IllegalStateException("No locking interceptor found in " + advanced.getInterceptorChain());
+   }
+
+   /**
+    * Moves the lock acquisition times recorded since the previous drain into the target histogram.
+    */
+   static void drainTo(LatencyHistogram target) {
+      for (LatencyRecorder stripe : STRIPES) {
+         stripe.drainTo(target);
+      }
+   }
+
+   /**
+    * @return the lock acquisitions which timed out so far
+    */
+   static long timeouts() {
+      return TIMEOUTS.get();
+   }
+
+   private static void record(long nanos) {
+      STRIPES[(int) (Thread.currentThread().getId() % STRIPES.length)].record(nanos);
+   }
+
+   private static boolean acquiresLocks(InvocationContext ctx, VisitableCommand command) {
+      return command instanceof PrepareCommand || command instanceof LockControlCommand
+            || (command instanceof WriteCommand && !ctx.isInTxScope());
+   }
+
+   public static final class Before extends CommandInterceptor {
+      @Override
+      protected Object handleDefault(InvocationContext ctx, VisitableCommand command) throws Throwable {
+         if (!acquiresLocks(ctx, command)) return invokeNextInterceptor(ctx, command);
+         final long[] entered = ENTERED.get();
+         entered[0] = System.nanoTime();
+         try {
+            return invokeNextInterceptor(ctx, command);
+         } catch (TimeoutException e) {
+            if (entered[0] != 0) TIMEOUTS.incrementAndGet();
+            throw e;
+         } finally {
+            // still set if the locks couldn't be acquired
+            if (entered[0] != 0) {
+               record(System.nanoTime() - entered[0]);
+               entered[0] = 0;
+            }
+         }
+      }
+   }
+
+   public static final class After extends CommandInterceptor {
+      @Override
+      protected Object handleDefault(InvocationContext ctx, VisitableCommand command) throws Throwable {
+         final long[] entered = ENTERED.get();
+         if (entered[0] != 0) {
+            record(System.nanoTime() - entered[0]);
+            entered[0] = 0;
+         }
+         return invokeNextInterceptor(ctx, command);
+      }
+   }
+}
@@ -0,0 +1,360 @@
+package org.infinispan.benchmark;
+
+import org.infinispan.config.Configuration;
+import org.infinispan.config.GlobalConfiguration;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.DataRehashed;
+import org.infinispan.notifications.cachelistener.event.DataRehashedEvent;
+import org.infinispan.remoting.transport.Address;
+import org.infinispan.remoting.transport.jgroups.JGroupsTransport;
+import org.jgroups.protocols.DISCARD;
+
+import java.io.File;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Changes the cluster membership under load, following bench.membershipSchedule: a comma separated list of
+ * seconds:event, the seconds counting from the end of the warmup, e.g. "300:leave,600:join,900:kill". Events:
+ * <ul>
+ *    <li>join: a new node starts, and gets its share of the data</li>
+ *    <li>leave: a node stops gracefully</li>
+ *    <li>kill: a node stops answering (DISCARD drops all its traffic, so the stack must contain DISCARD as
+ *    bench-jgroups.xml does) and is only stopped once the other nodes excluded it from the view</li>
+ * </ul>
+ * Only nodes without workers come and go: bench.spareNodes of them (default 1) are started with the cluster,
+ * and leave and kill pick the most recently started one.
+ * <p>
+ * Throughput is sampled every second while the scenario runs, and for each event the report shows the
+ * rebalance or state transfer duration (from the DataRehashed notifications), the throughput dip and the time
+ * it took to recover, the latencies during the transition and the bytes sent by all nodes meanwhile.
+ */
+final class MembershipScenario {
+
+   static final String SCHEDULE = System.getProperty("bench.membershipSchedule", "");
+   static final int SPARE_NODES = Integer.getInteger("bench.spareNodes", 1);
+
+   private static final int BASELINE_SECONDS = 30; //throughput and latencies before an event
+   private static final double RECOVERED_FRACTION = 0.9; //of the baseline throughput...
+   private static final int RECOVERED_SECONDS = 5; //...during that many seconds in a row
+   private static final long KILL_DETECTION_TIMEOUT_MINUTES = 5;
+
+   private static final NumberFormat NF = NumberFormat.getInstance();
+
+   private final GlobalConfiguration globalConfiguration;
+   private final Configuration configuration;
+   private final DefaultCacheManager reference; //a node with workers, never stopped
+   private final List<DefaultCacheManager> nodes = new CopyOnWriteArrayList<DefaultCacheManager>();
+   private final LinkedList<DefaultCacheManager> spares = new LinkedList<DefaultCacheManager>();
+   private final List<Event> events = new ArrayList<Event>();
+   private final List<Sample> samples = new CopyOnWriteArrayList<Sample>();
+   private final AtomicLong bytesSentByStoppedNodes = new AtomicLong();
+   private final RebalanceListener rebalances = new RebalanceListener();
+   private final Timer sampler = new Timer("MembershipSampler", true);
+   private final Timer scheduler = new Timer("MembershipScenario", true); //events block, the sampler must not wait
+   private volatile long startTime;
+
+   static boolean isEnabled() {
+      return SCHEDULE.trim().length() > 0;
+   }
+
+   /**
+    * Starts the spare nodes next to the given, already clustered, nodes.
+    */
+   MembershipScenario(DefaultCacheManager[] cms, GlobalConfiguration globalConfiguration, Configuration configuration) throws InterruptedException {
+      this.globalConfiguration = globalConfiguration;
+      this.configuration = configuration;
+      this.reference = cms[0];
+      for (String event : SCHEDULE.split(",")) {
+         String[] parts = event.trim().split(":");
+         if (parts.length != 2 || !(parts[1].equals("join") || parts[1].equals("leave") || parts[1].equals("kill")))
+            throw new IllegalArgumentException("Expected seconds:join, seconds:leave or seconds:kill in bench.membershipSchedule, got " + event);
+         Event e = new Event(Integer.parseInt(parts[0]), parts[1]);
+         if (!events.isEmpty() && events.get(events.size() - 1).second > e.second)
+            throw new IllegalArgumentException("The events of bench.membershipSchedule must be in chronological order");
+         events.add(e);
+      }
+      for (DefaultCacheManager cm : cms) {
+         nodes.add(cm);
+         cm.getCache().addListener(rebalances);
+      }
+      for (int i = 0; i < SPARE_NODES; i++) {
+         spares.add(startNode());
+      }
+      while (reference.getMembers().size() != cms.length + SPARE_NODES) Thread.sleep(100);
+   }
+
+   private DefaultCacheManager startNode() {
+      DefaultCacheManager cm = new DefaultCacheManager(globalConfiguration.clone(), configuration.clone());
+      cm.getCache().addListener(rebalances);
+      nodes.add(cm);
+      return cm;
+   }
+
+   /**
+    * Samples the given source every second, so the source returned has to be used in place of it.
+    */
+   StatsSource sample(final StatsSource source) {
+      final NodeStats pending = new NodeStats();
+      sampler.scheduleAtFixedRate(new TimerTask() {
+         public void run() {
+            if (startTime == 0) return;
+            try {
+               NodeStats stats;
+               synchronized (pending) {
+                  stats = source.collectStats();
+                  pending.addLatencies(stats);
+               }
+               samples.add(new Sample(System.nanoTime(), stats.reads + stats.writes, stats.latencies, bytesSent()));
+            } catch (Exception e) {
+               System.out.println("Membership scenario: unable to sample (" + e + ")");
+            }
+         }
+      }, 1000, 1000);
+      return new StatsSource() {
+         public NodeStats collectStats() throws Exception {
+            synchronized (pending) {
+               NodeStats stats = source.collectStats();
+               stats.addLatencies(pending);
+               pending.resetLatencies();
+               return stats;
+            }
+         }
+
+         public void startProfiling(File file) throws Exception {
+            source.startProfiling(file);
+         }
+
+         public void stopProfiling() throws Exception {
+            source.stopProfiling();
+         }
+      };
+   }
+
+   /**
+    * Runs the events of the schedule, counting from now.
+    */
+   void start() {
+      startTime = System.nanoTime();
+      for (final Event event : events) {
+         scheduler.schedule(new TimerTask() {
+            public void run() {
+               event.run();
+            }
+         }, TimeUnit.SECONDS.toMillis(event.second));
+      }
+   }
+
+   void stop() {
+      sampler.cancel();
+      scheduler.cancel();
+      for (DefaultCacheManager cm : spares) {
+         cm.stop();
+      }
+   }
+
+   private long bytesSent() {
+      long bytes = bytesSentByStoppedNodes.get();
+      for (DefaultCacheManager cm : nodes) {
+         bytes += bytesSent(cm);
+      }
+      return bytes;
+   }
+
+   static long bytesSent(EmbeddedCacheManager cm) {
+      try {
+         return ((JGroupsTransport) cm.getTransport()).getChannel().getProtocolStack().getTransport().getNumBytesSent();
+      } catch (RuntimeException e) {
+         return 0; // node stopped meanwhile
+      }
+   }
+
+   private void retire(DefaultCacheManager cm) {
+      bytesSentByStoppedNodes.addAndGet(bytesSent(cm));
+      nodes.remove(cm);
+   }
+
+   void report() {
+      System.out.println("Membership changes:");
+      for (int i = 0; i < events.size(); i++) {
+         Event event = events.get(i);
+         if (event.start == 0) {
+            System.out.printf("  %s at %ss: not run%n", event.type, event.second);
+            continue;
+         }
+         final long windowEnd = i + 1 < events.size() && events.get(i + 1).start > 0 ? events.get(i + 1).start : System.nanoTime();
+         event.report(windowEnd);
+      }
+   }
+
+   private final class Event {
+      final int second;
+      final String type;
+      volatile long start;
+      volatile long end; //the node started, stopped, or was excluded from the view
+      volatile String failure;
+
+      Event(int second, String type) {
+         this.second = second;
+         this.type = type;
+      }
+
+      void run() {
+         start = System.nanoTime();
+         try {
+            if (type.equals("join")) {
+               spares.add(startNode());
+            } else if (spares.isEmpty()) {
+               failure = "no spare node left";
+               return;
+            } else if (type.equals("leave")) {
+               DefaultCacheManager cm = spares.removeLast();
+               retire(cm);
+               cm.stop();
+            } else {
+               kill(spares.removeLast());
+            }
+            end = System.nanoTime();
+         } catch (Exception e) {
+            failure = e.toString();
+         }
+      }
+
+      private void kill(final DefaultCacheManager cm) throws InterruptedException {
+         DISCARD discard = (DISCARD) ((JGroupsTransport) cm.getTransport()).getChannel().getProtocolStack().findProtocol(DISCARD.class);
+         if (discard == null) throw new IllegalStateException("kill needs the DISCARD protocol in the JGroups stack");
+         discard.setDiscardAll(true);
+         final Address address = cm.getAddress();
+         final long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(KILL_DETECTION_TIMEOUT_MINUTES);
+         while (reference.getMembers().contains(address)) {
+            if (System.nanoTime() > deadline) throw new IllegalStateException("Killed node still in view after " + KILL_DETECTION_TIMEOUT_MINUTES + " minutes");
+            Thread.sleep(10);
+         }
+         retire(cm);
+         Thread stopper = new Thread("StopKilledNode") {
+            public void run() {
+               cm.stop();
+            }
+         };
+         stopper.setDaemon(true);
+         stopper.start();
+      }
+
+      void report(long windowEnd) {
+         final double offset = (start - startTime) / 1e9;
+         if (failure != null) {
+            System.out.printf("  %s at %.0fs FAILED: %s%n", type, offset, failure);
+            return;
+         }
+         String action = type.equals("join") ? "started" : type.equals("leave") ? "stopped" : "excluded from the view";
+         System.out.printf("  %s at %.0fs: node %s after %s ms", type, offset, action, end == 0 ? "?" : TimeUnit.NANOSECONDS.toMillis(end - start));
+         long[] rebalance = rebalances.window(start, windowEnd);
+         if (rebalance != null)
+            System.out.printf(", rebalance from +%s ms to +%s ms", TimeUnit.NANOSECONDS.toMillis(rebalance[0] - start), TimeUnit.NANOSECONDS.toMillis(rebalance[1] - start));
+         System.out.println();
+
+         List<Sample> before = new ArrayList<Sample>();
+         List<Sample> after = new ArrayList<Sample>();
+         for (Sample s : samples) {
+            if (s.time <= start && s.time > start - TimeUnit.SECONDS.toNanos(BASELINE_SECONDS + 1)) before.add(s);
+            else if (s.time > start && s.time <= windowEnd) after.add(s);
+         }
+         if (before.size() < 2 || after.isEmpty()) {
+            System.out.println("    not enough throughput samples around the event");
+            return;
+         }
+         final double baseline = rate(before.get(0), before.get(before.size() - 1));
+         double lowest = Double.MAX_VALUE;
+         Sample previous = before.get(before.size() - 1);
+         Sample recovered = null;
+         int recoveredSeconds = 0;
+         Latencies transition = new Latencies();
+         for (Sample s : after) {
+            final double rate = rate(previous, s);
+            lowest = Math.min(lowest, rate);
+            if (recovered == null) transition.add(s.latencies);
+            recoveredSeconds = rate >= baseline * RECOVERED_FRACTION ? recoveredSeconds + 1 : 0;
+            if (recoveredSeconds == RECOVERED_SECONDS && recovered == null) recovered = s;
+            previous = s;
+         }
+         Latencies steady = new Latencies();
+         for (Sample s : before) {
+            steady.add(s.latencies);
+         }
+         System.out.printf("    throughput %s ops/s before, lowest %s ops/s (%.0f%%), %s%n", NF.format((long) baseline), NF.format((long) lowest),
+               lowest * 100 / baseline, recovered == null ? "NOT RECOVERED" : "recovered after " + TimeUnit.NANOSECONDS.toSeconds(recovered.time - start) + " s");
+         final Sample last = recovered == null ? after.get(after.size() - 1) : recovered;
+         final Sample first = before.get(before.size() - 1);
+         final double seconds = (last.time - first.time) / 1e9;
+         final double baselineBytesPerSecond = (first.bytesSent - before.get(0).bytesSent) / ((first.time - before.get(0).time) / 1e9);
+         System.out.printf("    bytes sent by all nodes during the transition: %s (%s at the throughput before)%n",
+               StartupSpeedTest.format(last.bytesSent - first.bytesSent), StartupSpeedTest.format((long) (baselineBytesPerSecond * seconds)));
+         printLatency("before", steady);
+         printLatency("during", transition);
+      }
+
+      private double rate(Sample from, Sample to) {
+         return to.time == from.time ? 0 : (to.ops - from.ops) * 1e9 / (to.time - from.time);
+      }
+
+      private void printLatency(String when, Latencies latencies) {
+         LatencyHistogram all = latencies.reads.copy();
+         all.add(latencies.writes);
+         if (all.getTotalCount() == 0) return;
+         System.out.printf("    latency %s (us): p50 %s  p99 %s  p99.9 %s  max %s%n", when, NF.format(all.getValueAtPercentile(50) / 1000),
+               NF.format(all.getValueAtPercentile(99) / 1000), NF.format(all.getValueAtPercentile(99.9) / 1000), NF.format(all.getMaxValue() / 1000));
+      }
+   }
+
+   private static final class Sample {
+      final long time;
+      final long ops;
+      final Latencies latencies;
+      final long bytesSent;
+
+      Sample(long time, long ops, Latencies latencies, long bytesSent) {
+         this.time = time;
+         this.ops = ops;
+         this.latencies = latencies;
+         this.bytesSent = bytesSent;
+      }
+   }
+
+   /**
+    * Records when the rebalances (or state transfers) start and end, on any node.
+    */
+   @Listener
+   public static final class RebalanceListener {
+      private final List<Long> starts = new CopyOnWriteArrayList<Long>();
+      private final List<Long> ends = new CopyOnWriteArrayList<Long>();
+
+      @DataRehashed
+      public void dataRehashed(DataRehashedEvent<?, ?> event) {
+         (event.isPre() ? starts : ends).add(System.nanoTime());
+      }
+
+      /**
+       * @return the first start and the last end of the rebalances in the given time window, or null if none
+       */
+      long[] window(long from, long to) {
+         long first = Long.MAX_VALUE;
+         long last = Long.MIN_VALUE;
+         for (long t : starts) {
+            if (t >= from && t < to) first = Math.min(first, t);
+         }
+         for (long t : ends) {
+            if (t >= from && t < to) last = Math.max(last, t);
+         }
+         return first == Long.MAX_VALUE || last == Long.MIN_VALUE ? null : new long[] { first, last };
+      }
+   }
+}
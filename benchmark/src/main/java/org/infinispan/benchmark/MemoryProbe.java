@@ -0,0 +1,128 @@
+package org.infinispan.benchmark;
+
+import java.io.Serializable;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Allocation and GC instrumentation for the measured window of a benchmark, replacing the old
+ * "forty System.gc() and look at totalMemory - freeMemory" estimates:
+ * <ul>
+ *    <li>bytes allocated per thread, from the HotSpot ThreadMXBean (-1 when the JVM doesn't support it)</li>
+ *    <li>collection count and time per collector, from the GC MXBeans</li>
+ *    <li>retained heap, i.e. heap used after full collections, once it stopped shrinking</li>
+ * </ul>
+ */
+final class MemoryProbe {
+
+   private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+   private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+   private static final boolean ALLOCATION_SUPPORTED = initAllocationCounters();
+
+   private static boolean initAllocationCounters() {
+      try {
+         if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported()) {
+               threads.setThreadAllocatedMemoryEnabled(true);
+               return true;
+            }
+         }
+      } catch (Throwable t) {
+         // not a HotSpot JVM
+      }
+      return false;
+   }
+
+   private MemoryProbe() {
+   }
+
+   static boolean isAllocationSupported() {
+      return ALLOCATION_SUPPORTED;
+   }
+
+   /**
+    * @return bytes allocated so far by the given thread, or -1 if unknown
+    */
+   static long allocatedBytes(long threadId) {
+      return ALLOCATION_SUPPORTED ? ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(threadId) : -1;
+   }
+
+   /**
+    * @return bytes allocated so far by the current thread, or -1 if unknown
+    */
+   static long allocatedBytes() {
+      return allocatedBytes(Thread.currentThread().getId());
+   }
+
+   /**
+    * Heap used once it stopped shrinking after full collections: an estimate of the live, retained heap.
+    */
+   static long retainedHeap() {
+      long used = MEMORY.getHeapMemoryUsage().getUsed();
+      for (int i = 0; i < 20; i++) {
+         System.gc();
+         try {
+            Thread.sleep(20);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+         }
+         long after = MEMORY.getHeapMemoryUsage().getUsed();
+         if (after >= used && i > 0) return after;
+         used = after;
+      }
+      return used;
+   }
+
+   static GcSnapshot gcSnapshot() {
+      GcSnapshot snapshot = new GcSnapshot();
+      List<GarbageCollectorMXBean> beans = ManagementFactory.getGarbageCollectorMXBeans();
+      for (GarbageCollectorMXBean gc : beans) {
+         snapshot.collectors.put(gc.getName(), new long[] { gc.getCollectionCount(), gc.getCollectionTime() });
+      }
+      return snapshot;
+   }
+
+   /**
+    * Collection counts and times of all collectors at a given time; subtract two of them to get the
+    * GC activity of a window. Snapshots of several JVMs can be summed up.
+    */
+   static final class GcSnapshot implements Serializable {
+      private static final long serialVersionUID = 1L;
+
+      final Map<String, long[]> collectors = new LinkedHashMap<String, long[]>();
+
+      void add(GcSnapshot other) {
+         for (Map.Entry<String, long[]> e : other.collectors.entrySet()) {
+            long[] mine = collectors.get(e.getKey());
+            if (mine == null) collectors.put(e.getKey(), mine = new long[2]);
+            mine[0] += e.getValue()[0];
+            mine[1] += e.getValue()[1];
+         }
+      }
+
+      /**
+       * Prints the collections which happened since the given snapshot, taken windowNanos earlier.
+       */
+      void printSince(GcSnapshot start, long windowNanos) {
+         long windowMillis = windowNanos / 1000000;
+         long totalPause = 0;
+         for (Map.Entry<String, long[]> e : collectors.entrySet()) {
+            long[] before = start.collectors.get(e.getKey());
+            if (before == null) before = new long[2];
+            long count = e.getValue()[0] - before[0];
+            long millis = e.getValue()[1] - before[1];
+            totalPause += millis;
+            System.out.printf("  GC %-20s %s collections, %s ms%n", e.getKey(), count, millis);
+         }
+         if (windowMillis > 0)
+            System.out.printf("  GC time: %s ms over %s ms (%.2f%%)%n", totalPause, windowMillis, totalPause * 100.0 / windowMillis);
+      }
+   }
+}
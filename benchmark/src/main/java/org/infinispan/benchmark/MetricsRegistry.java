@@ -0,0 +1,279 @@
+package org.infinispan.benchmark;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Live metrics per node, enabled with bench.metrics=true: throughput, failed operations and latencies of the
+ * last progress tick for each node, and the share of the gets which found their key on the node itself (in
+ * dist mode, sampled by the readers). They are published as MBeans, org.infinispan.benchmark:type=NodeMetrics
+ * with a node key, and rewritten at every tick to a text snapshot in bench.resultsDir.
+ * <p>
+ * The registry is only updated by the progress monitor from the stats it collects anyway, so the workers do
+ * nothing more than the locality sampling: per node stats are drained from per worker counters and recorders.
+ */
+public final class MetricsRegistry {
+
+   static final boolean ENABLED = Boolean.getBoolean("bench.metrics");
+   private static final String DOMAIN = "org.infinispan.benchmark";
+   private static final String ALL = "all";
+
+   private final String name;
+   private final File file;
+   private final Map<String, NodeMetrics> nodes = new HashMap<String, NodeMetrics>();
+   private final Map<String, long[]> lastCounts = new HashMap<String, long[]>();
+
+   /**
+    * Metrics of a node, as of the last progress tick.
+    */
+   public interface NodeMetricsMBean {
+      String getPhase();
+
+      int getWorkers();
+
+      long getReads();
+
+      long getWrites();
+
+      long getFailed();
+
+      double getReadsPerSecond();
+
+      double getWritesPerSecond();
+
+      double getReadLatencyP50Micros();
+
+      double getReadLatencyP99Micros();
+
+      double getWriteLatencyP50Micros();
+
+      double getWriteLatencyP99Micros();
+
+      double getCommitLatencyP99Micros();
+
+      /**
+       * @return the percentage of sampled gets whose key is owned by the node, -1 when not sampled
+       */
+      double getLocalGetPercent();
+   }
+
+   private MetricsRegistry(String name, File file) {
+      this.name = name;
+      this.file = file;
+   }
+
+   /**
+    * @return a registry for the run of the given name, or null if bench.metrics isn't set
+    */
+   static MetricsRegistry create(String name) {
+      if (!ENABLED) return null;
+      File file = null;
+      if (ResultsWriter.RESULTS_DIR.length() > 0) {
+         File dir = new File(ResultsWriter.RESULTS_DIR);
+         if (dir.isDirectory() || dir.mkdirs()) file = new File(dir, name + "-metrics.txt");
+      }
+      System.out.println("Metrics per node published as " + DOMAIN + ":type=NodeMetrics MBeans"
+            + (file == null ? "" : " and in " + file));
+      return new MetricsRegistry(name, file);
+   }
+
+   /**
+    * Updates the metrics with the stats of a progress tick: cumulative counters, and the latencies recorded
+    * since the previous tick.
+    *
+    * @param interval time since the previous tick, in nanoseconds
+    */
+   void update(String phase, long elapsed, long interval, NodeStats stats) {
+      List<NodeMetrics> updated = new ArrayList<NodeMetrics>(stats.nodes.size() + 1);
+      for (NodeStats node : stats.nodes) {
+         updated.add(update(String.valueOf(node.node), phase, interval, node));
+      }
+      updated.add(update(ALL, phase, interval, stats));
+      if (file != null) writeSnapshot(phase, elapsed, updated);
+   }
+
+   private NodeMetrics update(String node, String phase, long interval, NodeStats stats) {
+      long[] last = lastCounts.get(node);
+      if (last == null) lastCounts.put(node, last = new long[2]);
+      final Snapshot snapshot = new Snapshot(phase, stats, stats.reads - last[0], stats.writes - last[1], interval);
+      last[0] = stats.reads;
+      last[1] = stats.writes;
+      NodeMetrics metrics = nodes.get(node);
+      if (metrics == null) {
+         metrics = new NodeMetrics(node, snapshot);
+         nodes.put(node, metrics);
+         register(metrics);
+      } else {
+         metrics.snapshot = snapshot;
+      }
+      return metrics;
+   }
+
+   private void register(NodeMetrics metrics) {
+      try {
+         MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+         ObjectName objectName = metrics.objectName();
+         if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+         server.registerMBean(new StandardMBean(metrics, NodeMetricsMBean.class), objectName);
+      } catch (Exception e) {
+         System.out.println("Unable to register the metrics MBean of node " + metrics.node + ": " + e);
+      }
+   }
+
+   /**
+    * Rewrites the snapshot file as a whole, through a rename so that readers never see it half written.
+    */
+   private void writeSnapshot(String phase, long elapsed, List<NodeMetrics> metrics) {
+      File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+      try {
+         PrintWriter out = new PrintWriter(new FileWriter(tmp));
+         try {
+            out.printf(Locale.ENGLISH, "# %s, %s phase, %ss elapsed, updated %s%n", name, phase, TimeUnit.NANOSECONDS.toSeconds(elapsed),
+                  new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date()));
+            out.println("# rates and latencies (us) over the last tick, counts since the start");
+            out.printf(Locale.ENGLISH, "%-5s %7s %12s %12s %12s %9s %9s %9s %9s %9s %12s %12s %10s%n", "node", "workers", "reads/s",
+                  "writes/s", "ops/s/worker", "read p50", "read p99", "write p50", "write p99", "commit p99", "reads", "writes", "failed");
+            for (NodeMetrics m : metrics) {
+               Snapshot s = m.snapshot;
+               out.printf(Locale.ENGLISH, "%-5s %7d %12.0f %12.0f %12.0f %9.0f %9.0f %9.0f %9.0f %10.0f %12d %12d %10d", m.node, s.workers,
+                     s.readsPerSecond, s.writesPerSecond, s.workers == 0 ? 0 : (s.readsPerSecond + s.writesPerSecond) / s.workers,
+                     s.readP50, s.readP99, s.writeP50, s.writeP99, s.commitP99, s.reads, s.writes, s.failed);
+               if (s.localGetPercent >= 0) out.printf(Locale.ENGLISH, "  %.1f%% local gets", s.localGetPercent);
+               out.println();
+            }
+         } finally {
+            out.close();
+         }
+         if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) throw new IOException("Unable to rename " + tmp);
+         }
+      } catch (IOException e) {
+         System.out.println("Unable to write the metrics snapshot " + file + ": " + e);
+      }
+   }
+
+   void close() {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      for (NodeMetrics metrics : nodes.values()) {
+         try {
+            server.unregisterMBean(metrics.objectName());
+         } catch (Exception e) {
+            // not registered
+         }
+      }
+   }
+
+   /**
+    * The values of a node at a tick, replaced as a whole so that an MBean read never mixes two ticks.
+    */
+   private static final class Snapshot {
+      final String phase;
+      final int workers;
+      final long reads, writes, failed;
+      final double readsPerSecond, writesPerSecond;
+      final double readP50, readP99, writeP50, writeP99, commitP99;
+      final double localGetPercent;
+
+      Snapshot(String phase, NodeStats stats, long intervalReads, long intervalWrites, long interval) {
+         this.phase = phase;
+         this.workers = stats.workers;
+         this.reads = stats.reads;
+         this.writes = stats.writes;
+         this.failed = stats.aborted;
+         this.readsPerSecond = interval == 0 ? 0 : intervalReads * 1e9 / interval;
+         this.writesPerSecond = interval == 0 ? 0 : intervalWrites * 1e9 / interval;
+         this.readP50 = micros(stats.latencies.reads, 50);
+         this.readP99 = micros(stats.latencies.reads, 99);
+         this.writeP50 = micros(stats.latencies.writes, 50);
+         this.writeP99 = micros(stats.latencies.writes, 99);
+         this.commitP99 = micros(stats.latencies.commits, 99);
+         final long sampledGets = stats.localGets + stats.remoteGets;
+         this.localGetPercent = sampledGets == 0 ? -1 : stats.localGets * 100.0 / sampledGets;
+      }
+
+      private static double micros(LatencyHistogram h, double percentile) {
+         return h.getTotalCount() == 0 ? 0 : h.getValueAtPercentile(percentile) / 1000.0;
+      }
+   }
+
+   static final class NodeMetrics implements NodeMetricsMBean {
+      final String node;
+      volatile Snapshot snapshot;
+
+      NodeMetrics(String node, Snapshot snapshot) {
+         this.node = node;
+         this.snapshot = snapshot;
+      }
+
+      ObjectName objectName() throws Exception {
+         return new ObjectName(DOMAIN + ":type=NodeMetrics,node=" + node);
+      }
+
+      public String getPhase() {
+         return snapshot.phase;
+      }
+
+      public int getWorkers() {
+         return snapshot.workers;
+      }
+
+      public long getReads() {
+         return snapshot.reads;
+      }
+
+      public long getWrites() {
+         return snapshot.writes;
+      }
+
+      public long getFailed() {
+         return snapshot.failed;
+      }
+
+      public double getReadsPerSecond() {
+         return snapshot.readsPerSecond;
+      }
+
+      public double getWritesPerSecond() {
+         return snapshot.writesPerSecond;
+      }
+
+      public double getReadLatencyP50Micros() {
+         return snapshot.readP50;
+      }
+
+      public double getReadLatencyP99Micros() {
+         return snapshot.readP99;
+      }
+
+      public double getWriteLatencyP50Micros() {
+         return snapshot.writeP50;
+      }
+
+      public double getWriteLatencyP99Micros() {
+         return snapshot.writeP99;
+      }
+
+      public double getCommitLatencyP99Micros() {
+         return snapshot.commitP99;
+      }
+
+      public double getLocalGetPercent() {
+         return snapshot.localGetPercent;
+      }
+   }
+}
@@ -0,0 +1,68 @@
+package org.infinispan.benchmark;
+
+/**
+ * Injects network latency, jitter and packet loss in the benchmark JGroups stacks (bench-jgroups.xml and
+ * bench-jgroups-tcp.xml), which otherwise run over a zero latency loopback. The profile is chosen with
+ * bench.networkProfile:
+ * <ul>
+ *    <li>none (default): no delay nor loss</li>
+ *    <li>lan: 1 ms on every sent message, about 2 ms round trip, the smallest delay JGroups' DELAY can add</li>
+ *    <li>cross-rack: 1-2 ms on every sent and every received message, 4 to 8 ms round trip</li>
+ *    <li>lossy: cross-rack, and 1% of the received messages are dropped, so retransmissions kick in</li>
+ * </ul>
+ * DELAY picks a random delay between 1 ms and its upper bound for every message, which is where the jitter
+ * comes from. The bounds can also be set one by one with bench.net.outDelay and bench.net.inDelay (upper
+ * bounds in ms) and bench.net.loss (drop probability of received messages, between 0 and 1), which take
+ * precedence over the profile.
+ */
+final class NetworkProfile {
+
+   static final String PROFILE = System.getProperty("bench.networkProfile", "none");
+
+   static final String OUT_DELAY = "bench.net.outDelay";
+   static final String IN_DELAY = "bench.net.inDelay";
+   static final String LOSS = "bench.net.loss";
+
+   private NetworkProfile() {
+   }
+
+   /**
+    * Sets the system properties substituted in the JGroups configuration files; must run before any
+    * channel is created.
+    */
+   static void apply() {
+      if ("none".equals(PROFILE)) {
+         set(0, 0, 0);
+      } else if ("lan".equals(PROFILE)) {
+         set(1, 0, 0);
+      } else if ("cross-rack".equals(PROFILE)) {
+         set(2, 2, 0);
+      } else if ("lossy".equals(PROFILE)) {
+         set(2, 2, 0.01);
+      } else {
+         throw new IllegalArgumentException("Unknown network profile: " + PROFILE + ", expected none, lan, cross-rack or lossy");
+      }
+   }
+
+   private static void set(int outDelay, int inDelay, double loss) {
+      setDefault(OUT_DELAY, String.valueOf(outDelay));
+      setDefault(IN_DELAY, String.valueOf(inDelay));
+      setDefault(LOSS, String.valueOf(loss));
+   }
+
+   private static void setDefault(String key, String value) {
+      if (System.getProperty(key) == null) System.setProperty(key, value);
+   }
+
+   static String describe() {
+      return PROFILE + " (delay up to " + System.getProperty(OUT_DELAY) + " ms out and " + System.getProperty(IN_DELAY)
+            + " ms in, loss " + Double.parseDouble(System.getProperty(LOSS)) * 100 + "%)";
+   }
+
+   /**
+    * @return whether the given JGroups configuration file honours the profile
+    */
+   static boolean isSupported(String jgroupsConfigurationFile) {
+      return jgroupsConfigurationFile.startsWith("bench-jgroups");
+   }
+}
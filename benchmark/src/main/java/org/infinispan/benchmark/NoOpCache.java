@@ -0,0 +1,76 @@
+package org.infinispan.benchmark;
+
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.util.concurrent.FutureListener;
+import org.infinispan.util.concurrent.NotifyingFuture;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cache which does nothing at all, used to measure the ceiling of the load generator itself.
+ * Every method returns null (or the default primitive value), except {@link Cache#getAdvancedCache()}
+ * which returns the same instance, so no transaction manager is available, and the async methods which
+ * return an already completed future.
+ */
+final class NoOpCache implements InvocationHandler {
+
+   private static final Class<?>[] INTERFACES = new Class<?>[] { AdvancedCache.class };
+
+   private static final NotifyingFuture<Object> DONE = new NotifyingFuture<Object>() {
+      public NotifyingFuture<Object> attachListener(FutureListener<Object> listener) {
+         listener.futureDone(this);
+         return this;
+      }
+
+      public boolean cancel(boolean mayInterruptIfRunning) {
+         return false;
+      }
+
+      public boolean isCancelled() {
+         return false;
+      }
+
+      public boolean isDone() {
+         return true;
+      }
+
+      public Object get() {
+         return null;
+      }
+
+      public Object get(long timeout, TimeUnit unit) {
+         return null;
+      }
+   };
+
+   @SuppressWarnings("unchecked")
+   static <K, V> AdvancedCache<K, V> create() {
+      return (AdvancedCache<K, V>) Proxy.newProxyInstance(NoOpCache.class.getClassLoader(), INTERFACES, new NoOpCache());
+   }
+
+   private NoOpCache() {
+   }
+
+   public Object invoke(Object proxy, Method method, Object[] args) {
+      final String name = method.getName();
+      final Class<?> returnType = method.getReturnType();
+      if ("getAdvancedCache".equals(name)) return proxy;
+      if ("equals".equals(name)) return proxy == args[0];
+      if ("hashCode".equals(name)) return System.identityHashCode(proxy);
+      if ("toString".equals(name)) return "NoOpCache";
+      if (returnType == NotifyingFuture.class) return DONE;
+      if (!returnType.isPrimitive() || returnType == void.class) return null;
+      if (returnType == boolean.class) return Boolean.FALSE;
+      if (returnType == long.class) return 0L;
+      if (returnType == int.class) return 0;
+      if (returnType == double.class) return 0d;
+      if (returnType == float.class) return 0f;
+      if (returnType == short.class) return (short) 0;
+      if (returnType == byte.class) return (byte) 0;
+      return (char) 0;
+   }
+}
@@ -0,0 +1,74 @@
+package org.infinispan.benchmark;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What the progress monitor collects from the workers at each tick: operation counters and bytes allocated
+ * by the workers since they started, GC counters of the JVM, and the latencies recorded since the previous
+ * collection. Stats of several nodes add up, GC counters included, and the stats of each node are kept
+ * in {@link #nodes} for the metrics registry.
+ */
+final class NodeStats implements Serializable {
+
+   private static final long serialVersionUID = 1L;
+
+   int node = -1; // the node these stats are of, -1 for stats merged from several nodes
+   int workers;
+   long reads;
+   long writes;
+   long allocatedBytes; // -1 when not supported by the JVM
+   long aborted; // transactions or operations which failed, in contention mode
+   long lockTimeouts;
+   long localGets; // sampled gets of keys owned by the node, in dist mode
+   long remoteGets;
+   long bytesSent; // by the JGroups transports of the nodes
+   double[] marshallingCost; // per value, measured on node 0 before the workers start
+   final MemoryProbe.GcSnapshot gc = new MemoryProbe.GcSnapshot();
+   final Latencies latencies = new Latencies();
+   final List<NodeStats> nodes = new ArrayList<NodeStats>(); // stats of each node merged into these
+
+   void add(NodeStats other) {
+      workers += other.workers;
+      reads += other.reads;
+      writes += other.writes;
+      aborted += other.aborted;
+      lockTimeouts += other.lockTimeouts;
+      localGets += other.localGets;
+      remoteGets += other.remoteGets;
+      bytesSent += other.bytesSent;
+      if (other.marshallingCost != null) marshallingCost = other.marshallingCost;
+      allocatedBytes = allocatedBytes < 0 || other.allocatedBytes < 0 ? -1 : allocatedBytes + other.allocatedBytes;
+      gc.add(other.gc);
+      latencies.add(other.latencies);
+      if (other.node >= 0)
+         nodes.add(other);
+      else
+         nodes.addAll(other.nodes);
+   }
+
+   /**
+    * Adds the latencies of the other stats to these, per node too.
+    */
+   void addLatencies(NodeStats other) {
+      latencies.add(other.latencies);
+      for (NodeStats otherNode : other.nodes) {
+         NodeStats node = null;
+         for (NodeStats n : nodes) {
+            if (n.node == otherNode.node) node = n;
+         }
+         if (node == null) {
+            node = new NodeStats();
+            node.node = otherNode.node;
+            nodes.add(node);
+         }
+         node.latencies.add(otherNode.latencies);
+      }
+   }
+
+   void resetLatencies() {
+      latencies.reset();
+      nodes.clear();
+   }
+}
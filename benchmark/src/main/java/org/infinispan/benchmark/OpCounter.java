@@ -0,0 +1,39 @@
+package org.infinispan.benchmark;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Single-writer operation counter: only the owning worker thread increments it, so a lazySet is enough
+ * and no CAS is needed; the progress monitor reads it from a different thread. The padding keeps
+ * counters of different workers from sharing a cache line.
+ */
+final class OpCounter {
+
+   private static final AtomicLongFieldUpdater<OpCounter> UPDATER = AtomicLongFieldUpdater.newUpdater(OpCounter.class, "count");
+
+   @SuppressWarnings("unused")
+   private long p1, p2, p3, p4, p5, p6, p7;
+   private volatile long count;
+   @SuppressWarnings("unused")
+   private long q1, q2, q3, q4, q5, q6, q7;
+
+   /**
+    * Must only be invoked by the owning thread.
+    */
+   long increment() {
+      return add(1);
+   }
+
+   /**
+    * Must only be invoked by the owning thread.
+    */
+   long add(long delta) {
+      long next = count + delta;
+      UPDATER.lazySet(this, next);
+      return next;
+   }
+
+   long get() {
+      return count;
+   }
+}
@@ -0,0 +1,287 @@
+package org.infinispan.benchmark;
+
+import org.infinispan.Cache;
+import org.infinispan.config.CacheLoaderManagerConfig;
+import org.infinispan.config.Configuration;
+import org.infinispan.config.GlobalConfiguration;
+import org.infinispan.eviction.EvictionStrategy;
+import org.infinispan.loaders.CacheLoaderException;
+import org.infinispan.loaders.bucket.Bucket;
+import org.infinispan.loaders.file.FileCacheStore;
+import org.infinispan.loaders.file.FileCacheStoreConfig;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Readers and writers on a local cache backed by a FileCacheStore, for each of bench.persistenceModes:
+ * <ul>
+ *    <li>write-through: every write reaches the store before returning</li>
+ *    <li>write-behind: writes are queued and stored by bench.writeBehindThreads threads (default 1), with a
+ *        queue of bench.writeBehindQueueSize modifications (default 1024)</li>
+ *    <li>passivation: only bench.persistenceCapacity entries (default a tenth of the keys) stay in memory,
+ *        LRU evicted entries go to the store and are loaded back on a miss</li>
+ * </ul>
+ * The store first gets all bench.persistenceKeys keys (default 100000, values of bench.persistenceValueSize
+ * bytes, default 1024), then bench.persistenceReaders (default 8) and bench.persistenceWriters (default 2)
+ * threads pick keys following bench.keyDistribution for bench.persistenceWarmupSeconds (default 10) and
+ * bench.persistenceSeconds (default 60). Reported are the throughput and latency percentiles, the disk I/O
+ * of the process from /proc/self/io (Linux only), the store's bucket writes (one fsync each with
+ * bench.storeFsync=per-write; the default leaves flushing to the OS) and the time to stop the cache, which
+ * includes flushing the write-behind queue.
+ * <p>
+ * Finally, unless bench.preloadEntries is 0, a store of that many entries (default 1000000) is written and a
+ * new cache preloads it: the warm start time.
+ * <p>
+ * The stores live under bench.storeDir (default the temp directory) and are deleted afterwards.
+ */
+public class PersistenceTest {
+
+   private static final String MODES = System.getProperty("bench.persistenceModes", "write-through,write-behind,passivation");
+   private static final int KEYS = Integer.getInteger("bench.persistenceKeys", 100000);
+   private static final int VALUE_SIZE = Integer.getInteger("bench.persistenceValueSize", 1024);
+   private static final int READERS = Integer.getInteger("bench.persistenceReaders", 8);
+   private static final int WRITERS = Integer.getInteger("bench.persistenceWriters", 2);
+   private static final int WARMUP_SECONDS = Integer.getInteger("bench.persistenceWarmupSeconds", 10);
+   private static final int MEASURE_SECONDS = Integer.getInteger("bench.persistenceSeconds", 60);
+   private static final int CAPACITY = Integer.getInteger("bench.persistenceCapacity", Math.max(1, KEYS / 10));
+   private static final int QUEUE_SIZE = Integer.getInteger("bench.writeBehindQueueSize", 1024);
+   private static final int WRITE_BEHIND_THREADS = Integer.getInteger("bench.writeBehindThreads", 1);
+   private static final String FSYNC = System.getProperty("bench.storeFsync", "default");
+   private static final int PRELOAD_ENTRIES = Integer.getInteger("bench.preloadEntries", 1000000);
+   private static final File STORE_DIR = new File(System.getProperty("bench.storeDir", System.getProperty("java.io.tmpdir")), "infinispan-bench-store");
+
+   private static final int BATCH = 1000; //entries per putAll when filling the store
+   private static final byte[][] VALUES = TimedWorker.values(VALUE_SIZE);
+
+   public static void main(String[] args) throws Exception {
+      final KeySpace keys = TimedWorker.keys(KEYS);
+      System.out.printf("FileCacheStore under %s, fsync %s, %s keys of %s bytes, %s readers and %s writers (%s), %ss warmup and %ss per mode%n",
+            STORE_DIR, FSYNC, KEYS, VALUE_SIZE, READERS, WRITERS, KeySelector.describe(), WARMUP_SECONDS, MEASURE_SECONDS);
+      for (String mode : MODES.split(",")) {
+         runWorkload(mode.trim(), keys);
+      }
+      if (PRELOAD_ENTRIES > 0) warmStart();
+   }
+
+   private static void runWorkload(String mode, KeySpace keys) throws Exception {
+      final File location = new File(STORE_DIR, mode);
+      delete(location);
+      EmbeddedCacheManager cm = new DefaultCacheManager(GlobalConfiguration.getNonClusteredDefault(), configuration(mode, location, false));
+      long stopNanos;
+      try {
+         Cache<String, byte[]> cache = cm.getCache();
+         final long fillStart = System.nanoTime();
+         fill(cache, KEYS);
+         System.out.printf("%s: stored %s entries in %s ms%n", mode, KEYS, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - fillStart));
+
+         List<Worker> workers = new ArrayList<Worker>(READERS + WRITERS);
+         for (int t = 0; t < READERS + WRITERS; t++) {
+            Random random = new Random();
+            workers.add(new Worker(cache, keys, KeySelector.create(keys.size(), random), random, t >= READERS));
+         }
+         TimedWorker.startAll(workers);
+         Thread.sleep(TimeUnit.SECONDS.toMillis(WARMUP_SECONDS));
+         final long[] ioBefore = procIo();
+         final long bucketWritesBefore = CountingFileCacheStore.BUCKET_WRITES.get();
+         final long nanos = TimedWorker.measure(workers, MEASURE_SECONDS);
+         final long bucketWrites = CountingFileCacheStore.BUCKET_WRITES.get() - bucketWritesBefore;
+         final long[] ioAfter = procIo();
+
+         long reads = 0, writes = 0;
+         LatencyHistogram readLatencies = new LatencyHistogram();
+         LatencyHistogram writeLatencies = new LatencyHistogram();
+         for (Worker worker : workers) {
+            if (worker.writer) {
+               writes += worker.ops;
+               writeLatencies.add(worker.latencies);
+            } else {
+               reads += worker.ops;
+               readLatencies.add(worker.latencies);
+            }
+         }
+         System.out.printf("   %.1f reads/second, %.1f writes/second%n", reads * 1e9 / nanos, writes * 1e9 / nanos);
+         printLatency("Read", readLatencies);
+         printLatency("Write", writeLatencies);
+         if (ioBefore != null && ioAfter != null) {
+            System.out.printf("   Disk I/O: %s read, %s written (%s passed to write())%n", StartupSpeedTest.format(ioAfter[0] - ioBefore[0]),
+                  StartupSpeedTest.format(ioAfter[1] - ioBefore[1]), StartupSpeedTest.format(ioAfter[2] - ioBefore[2]));
+         }
+         System.out.printf("   %s bucket writes, %.1f per write%s%n", bucketWrites, writes == 0 ? 0 : (double) bucketWrites / writes,
+               "per-write".equals(FSYNC) ? ", each one fsync" : "");
+         if (mode.equals("passivation")) System.out.printf("   %s entries in memory%n", cache.size());
+      } finally {
+         final long stopStart = System.nanoTime();
+         cm.stop();
+         stopNanos = System.nanoTime() - stopStart;
+      }
+      System.out.printf("   Stopped in %s ms, %s in the store%n", TimeUnit.NANOSECONDS.toMillis(stopNanos), StartupSpeedTest.format(size(location)));
+      delete(location);
+   }
+
+   /**
+    * Writes a store of PRELOAD_ENTRIES entries behind a cache, then times a new cache preloading it.
+    */
+   private static void warmStart() throws Exception {
+      final File location = new File(STORE_DIR, "preload");
+      delete(location);
+      EmbeddedCacheManager writer = new DefaultCacheManager(GlobalConfiguration.getNonClusteredDefault(), configuration("write-behind", location, false));
+      final long fillStart = System.nanoTime();
+      try {
+         fill(writer.<String, byte[]>getCache(), PRELOAD_ENTRIES);
+      } finally {
+         writer.stop();
+      }
+      System.out.printf("Preload: stored %s entries in %s ms, %s in the store%n", PRELOAD_ENTRIES,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - fillStart), StartupSpeedTest.format(size(location)));
+
+      final long[] ioBefore = procIo();
+      final long start = System.nanoTime();
+      EmbeddedCacheManager reader = new DefaultCacheManager(GlobalConfiguration.getNonClusteredDefault(), configuration("write-through", location, true));
+      try {
+         Cache<String, byte[]> cache = reader.getCache();
+         final long nanos = System.nanoTime() - start;
+         final long[] ioAfter = procIo();
+         System.out.printf("   Preloaded %s entries in %s ms%s%n", cache.size(), TimeUnit.NANOSECONDS.toMillis(nanos),
+               ioBefore == null || ioAfter == null ? "" : ", " + StartupSpeedTest.format(ioAfter[0] - ioBefore[0]) + " read from disk");
+      } finally {
+         reader.stop();
+      }
+      delete(location);
+   }
+
+   private static Configuration configuration(String mode, File location, boolean preload) {
+      FileCacheStoreConfig store = new FileCacheStoreConfig();
+      store.setCacheLoaderClassName(CountingFileCacheStore.class.getName());
+      store.setLocation(location.getAbsolutePath());
+      store.setPurgeOnStartup(!preload);
+      store.setFsyncMode(FileCacheStoreConfig.FsyncMode.valueOf(FSYNC.toUpperCase().replace('-', '_')));
+      CacheLoaderManagerConfig loaders = new CacheLoaderManagerConfig();
+      loaders.setPreload(preload);
+      loaders.setShared(false);
+
+      Configuration c = new Configuration();
+      c.setCacheMode(Configuration.CacheMode.LOCAL);
+      if (mode.equals("write-behind")) {
+         store.getAsyncStoreConfig().setEnabled(true);
+         store.getAsyncStoreConfig().setThreadPoolSize(WRITE_BEHIND_THREADS);
+         store.getAsyncStoreConfig().setModificationQueueSize(QUEUE_SIZE);
+      } else if (mode.equals("passivation")) {
+         loaders.setPassivation(true);
+         c.setEvictionStrategy(EvictionStrategy.LRU);
+         c.setEvictionMaxEntries(CAPACITY);
+      } else if (!mode.equals("write-through")) {
+         throw new IllegalArgumentException("Unknown persistence mode " + mode + ", expected write-through, write-behind or passivation");
+      }
+      loaders.addCacheLoaderConfig(store);
+      c.setCacheLoaderManagerConfig(loaders);
+      return c;
+   }
+
+   private static void fill(Cache<String, byte[]> cache, int entries) {
+      for (int from = 0; from < entries; from += BATCH) {
+         Map<String, byte[]> batch = new HashMap<String, byte[]>(BATCH * 2);
+         for (int i = from; i < Math.min(from + BATCH, entries); i++) {
+            batch.put("key" + i, VALUES[i % VALUES.length]);
+         }
+         cache.putAll(batch);
+      }
+   }
+
+   private static void printLatency(String what, LatencyHistogram h) {
+      if (h.getTotalCount() == 0) return;
+      System.out.printf("   %-5s latency (us): p50 %s  p90 %s  p99 %s  p99.9 %s  max %s%n", what, h.getValueAtPercentile(50) / 1000,
+            h.getValueAtPercentile(90) / 1000, h.getValueAtPercentile(99) / 1000, h.getValueAtPercentile(99.9) / 1000, h.getMaxValue() / 1000);
+   }
+
+   /**
+    * @return bytes read from and written to disk by this process, and bytes passed to write(), or null if unknown
+    */
+   private static long[] procIo() {
+      File io = new File("/proc/self/io");
+      if (!io.canRead()) return null;
+      long[] counters = new long[3];
+      try {
+         BufferedReader reader = new BufferedReader(new FileReader(io));
+         try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+               final long value = Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+               if (line.startsWith("read_bytes:")) counters[0] = value;
+               else if (line.startsWith("write_bytes:")) counters[1] = value;
+               else if (line.startsWith("wchar:")) counters[2] = value;
+            }
+         } finally {
+            reader.close();
+         }
+      } catch (IOException e) {
+         return null;
+      }
+      return counters;
+   }
+
+   private static long size(File f) {
+      File[] children = f.listFiles();
+      if (children == null) return f.length();
+      long size = 0;
+      for (File child : children) {
+         size += size(child);
+      }
+      return size;
+   }
+
+   private static void delete(File f) {
+      File[] children = f.listFiles();
+      if (children != null) {
+         for (File child : children) {
+            delete(child);
+         }
+      }
+      f.delete();
+   }
+
+   /**
+    * Gets, or puts for a writer.
+    */
+   private static final class Worker extends TimedWorker {
+      private final Cache<String, byte[]> cache;
+      final boolean writer;
+
+      Worker(Cache<String, byte[]> cache, KeySpace keys, KeySelector selector, Random random, boolean writer) {
+         super(writer ? "PersistenceTest-writer" : "PersistenceTest-reader", keys, selector, random);
+         this.cache = cache;
+         this.writer = writer;
+      }
+
+      protected void operate(int index, String key) {
+         if (writer)
+            cache.put(key, VALUES[random.nextInt(VALUES.length)]);
+         else
+            cache.get(key);
+      }
+   }
+
+   /**
+    * The FileCacheStore, counting its bucket writes: each is one fsync with bench.storeFsync=per-write.
+    */
+   public static class CountingFileCacheStore extends FileCacheStore {
+      static final AtomicLong BUCKET_WRITES = new AtomicLong();
+
+      @Override
+      protected void updateBucket(Bucket b) throws CacheLoaderException {
+         BUCKET_WRITES.incrementAndGet();
+         super.updateBucket(b);
+      }
+   }
+}
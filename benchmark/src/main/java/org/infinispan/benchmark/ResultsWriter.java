@@ -0,0 +1,133 @@
+package org.infinispan.benchmark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Writes the results of a run as a CSV file: the configuration and Infinispan version first, as
+ * "# key=value" comment lines, then one row per progress tick. The file is flushed at every tick so
+ * an aborted run still leaves its time series behind. See {@link CompareResults} to compare runs.
+ * <p>
+ * Files go to bench.resultsDir (default "results"); an empty value disables them.
+ */
+final class ResultsWriter {
+
+   static final String RESULTS_DIR = System.getProperty("bench.resultsDir", "results");
+
+   static final String PHASE_WARMUP = "warmup";
+   static final String PHASE_MEASURE = "measure";
+
+   static final String[] OPERATIONS = { "read", "write", "commit", "rollback", "conflicting", "nonconflicting", "lockwait",
+         "readresponse", "writeresponse" };
+   static final String[] PERCENTILE_COLUMNS = { "p50", "p90", "p99", "p999", "max" };
+   private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 100 };
+
+   private final File file;
+   private final PrintWriter out;
+
+   private ResultsWriter(File file) throws IOException {
+      this.file = file;
+      this.out = new PrintWriter(new FileWriter(file));
+   }
+
+   /**
+    * @return a writer for a new results file, or null if results files are disabled
+    */
+   static ResultsWriter create(String version, String name, Map<String, ?> configuration) {
+      if (RESULTS_DIR.length() == 0) return null;
+      File dir = new File(RESULTS_DIR);
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+         System.out.println("Unable to create results directory " + dir + ", not writing results");
+         return null;
+      }
+      String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+      File file = new File(dir, name + "-" + version + "-" + timestamp + ".csv");
+      try {
+         ResultsWriter writer = new ResultsWriter(file);
+         writer.header(version, configuration);
+         return writer;
+      } catch (IOException e) {
+         System.out.println("Unable to write results to " + file + ": " + e);
+         return null;
+      }
+   }
+
+   private void header(String version, Map<String, ?> configuration) {
+      out.println("# version=" + version);
+      out.println("# started=" + new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date()));
+      for (Map.Entry<String, ?> e : configuration.entrySet()) {
+         out.println("# " + e.getKey() + "=" + e.getValue());
+      }
+      StringBuilder sb = new StringBuilder("phase,elapsed_s,interval_s,reads_per_s,writes_per_s");
+      for (String op : OPERATIONS) {
+         sb.append(',').append(op).append("_count");
+         for (String p : PERCENTILE_COLUMNS) {
+            sb.append(',').append(op).append('_').append(p).append("_us");
+         }
+      }
+      out.println(sb);
+      out.flush();
+   }
+
+   /**
+    * @param elapsed time since the start of the current phase, in nanoseconds
+    * @param interval time since the previous tick, in nanoseconds
+    * @param reads reads since the previous tick
+    * @param writes writes since the previous tick
+    * @param latencies the latencies recorded since the previous tick
+    */
+   void tick(String phase, long elapsed, long interval, long reads, long writes, Latencies latencies) {
+      StringBuilder sb = new StringBuilder(256);
+      sb.append(phase).append(',').append(seconds(elapsed)).append(',').append(seconds(interval));
+      sb.append(',').append(perSecond(reads, interval)).append(',').append(perSecond(writes, interval));
+      append(sb, latencies.reads);
+      append(sb, latencies.writes);
+      append(sb, latencies.commits);
+      append(sb, latencies.rollbacks);
+      append(sb, latencies.conflicting);
+      append(sb, latencies.nonConflicting);
+      append(sb, latencies.lockWaits);
+      append(sb, latencies.readResponses);
+      append(sb, latencies.writeResponses);
+      out.println(sb);
+      out.flush();
+   }
+
+   /**
+    * @return a file next to the results file, with the same name but the given extension
+    */
+   File siblingFile(String extension) {
+      return new File(file.getParentFile(), file.getName().replaceFirst("\\.csv$", "") + extension);
+   }
+
+   void comment(String key, Object value) {
+      out.println("# " + key + "=" + value);
+      out.flush();
+   }
+
+   void close() {
+      out.close();
+      System.out.println("Results written to " + file);
+   }
+
+   private static void append(StringBuilder sb, LatencyHistogram h) {
+      sb.append(',').append(h.getTotalCount());
+      for (double p : PERCENTILES) {
+         sb.append(',').append(String.format(Locale.ENGLISH, "%.1f", h.getValueAtPercentile(p) / 1000.0));
+      }
+   }
+
+   private static String seconds(long nanos) {
+      return String.format(Locale.ENGLISH, "%.3f", nanos / 1e9);
+   }
+
+   private static String perSecond(long count, long nanos) {
+      return String.format(Locale.ENGLISH, "%.1f", nanos == 0 ? 0 : count * 1e9 / nanos);
+   }
+}
@@ -10,51 +10,166 @@ import org.infinispan.util.Util;
 import org.infinispan.util.concurrent.IsolationLevel;
 
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Measures how long it takes to start named caches in a running cache manager.
+ * <p>
+ * Caches are started from bench.startupThreads threads at once (default 1), which exposes lock contention
+ * in the cache manager. The time of each getCache() is recorded, and broken down in phases: defining the
+ * cache configuration (cloning the default one), JMX registration when -Djmx=true, and the rest of the
+ * startup (component registry wiring and starting the components).
+ * <p>
+ * bench.startupConfigs lists the configurations to compare, as eviction-tx or eviction-notx with eviction
+ * any EvictionStrategy, e.g. "lirs-tx,none-tx,lirs-notx,none-notx" (default lirs-tx).
+ */
 public class StartupSpeedTest {
    private static final boolean WITH_JMX = Boolean.getBoolean("jmx");
-   private static final int LOOP_SIZE=2000;
+   private static final int LOOP_SIZE = Integer.getInteger("bench.startupCaches", 2000);
+   private static final int THREADS = Integer.getInteger("bench.startupThreads", 1);
+   private static final String CONFIGS = System.getProperty("bench.startupConfigs", "lirs-tx");
 
-   public static void main(String[] args) {
+   public static void main(String[] args) throws Exception {
       System.setProperty("log4j.configuration", "file:///Users/manik/etc/log4j.xml");
+      for (String config : CONFIGS.split(",")) {
+         run(config.trim());
+      }
+   }
+
+   private static Configuration configuration(String name) {
+      int dash = name.indexOf('-');
+      if (dash < 0) throw new IllegalArgumentException("Expected eviction-tx or eviction-notx, got " + name);
+      EvictionStrategy eviction = EvictionStrategy.valueOf(name.substring(0, dash).toUpperCase());
+      boolean transactional = "tx".equals(name.substring(dash + 1));
+
       Configuration c = new Configuration();
       // A simple config... 
       c.setCacheMode(Configuration.CacheMode.LOCAL);
-      c.setEvictionMaxEntries(100);
-      c.setEvictionStrategy(EvictionStrategy.LIRS);
+      if (eviction != EvictionStrategy.NONE)
+         c.setEvictionMaxEntries(100);
+      c.setEvictionStrategy(eviction);
       c.setIsolationLevel(IsolationLevel.REPEATABLE_READ);
-      c.setTransactionManagerLookupClass(DummyTransactionManagerLookup.class.getName());
+      if (transactional)
+         c.setTransactionManagerLookupClass(DummyTransactionManagerLookup.class.getName());
       c.setExposeJmxStatistics(WITH_JMX);
+      return c;
+   }
+
+   private static GlobalConfiguration globalConfiguration() {
       GlobalConfiguration gc = GlobalConfiguration.getNonClusteredDefault();
       gc.setExposeGlobalJmxStatistics(WITH_JMX);
-      EmbeddedCacheManager ecm = new DefaultCacheManager(gc, c);
-      System.out.printf("Using Infinispan %s (JMX enabled? %s) %n", ecm.getCache().getVersion(), WITH_JMX);
+      gc.setMBeanServerLookup(TimingMBeanServerLookup.class.getName());
+      gc.setAllowDuplicateDomains(true);
+      return gc;
+   }
+
+   private static void run(String configName) throws Exception {
+      Configuration c = configuration(configName);
+      EmbeddedCacheManager ecm = new DefaultCacheManager(globalConfiguration(), c);
+      System.out.printf("Using Infinispan %s (JMX enabled? %s), configuration %s, %s threads %n", ecm.getCache().getVersion(), WITH_JMX, configName, THREADS);
 
       // Warmup loop.
-      for (int i=0; i<LOOP_SIZE; i++) {
-         ecm.getCache("Cache-" + i);
-      }
+      startCaches(ecm, c);
       ecm.stop();
 
-      ecm = new DefaultCacheManager(c);
+      long retainedBefore = MemoryProbe.retainedHeap();
+      ecm = new DefaultCacheManager(globalConfiguration(), c);
+      MemoryProbe.GcSnapshot gcBefore = MemoryProbe.gcSnapshot();
       long l = System.nanoTime();
-      for (int i=0; i<LOOP_SIZE; i++) {
-         ecm.getCache("Cache-" + i);
-      }
+      StartupTimes times = startCaches(ecm, c);
       long nanos = System.nanoTime() - l;
-      
-      System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc();
-      System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc();
-      System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc();
-      System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc();
-      System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc();
-
-      long mem0 = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
-      
-      System.out.printf("   Created %s caches in %s and consumed %s of memory.%n%n", LOOP_SIZE, Util.prettyPrintTime(nanos, TimeUnit.NANOSECONDS), format(mem0));
+      MemoryProbe.GcSnapshot gcAfter = MemoryProbe.gcSnapshot();
+
+      long retained = MemoryProbe.retainedHeap() - retainedBefore;
+      ecm.stop();
+
+      System.out.printf("   Created %s caches in %s (%s caches/second) and retained %s of memory (%s per cache).%n", LOOP_SIZE, Util.prettyPrintTime(nanos, TimeUnit.NANOSECONDS),
+            LOOP_SIZE * 1000000000L / nanos, format(retained), format(retained / LOOP_SIZE));
+      if (times.allocatedBytes >= 0)
+         System.out.printf("   Allocated %s while creating them (%s per cache).%n", format(times.allocatedBytes), format(times.allocatedBytes / LOOP_SIZE));
+      printPhase("getCache()", times.total);
+      printPhase("  defineConfiguration()", times.define);
+      printPhase("  wiring and start", times.start);
+      if (WITH_JMX)
+         printPhase("  JMX registration", times.jmx);
+      gcAfter.printSince(gcBefore, nanos);
+      System.out.println();
+   }
+
+   private static void printPhase(String phase, LatencyHistogram h) {
+      System.out.printf("   %-24s total %s ms  mean %s us  p50 %s us  p90 %s us  p99 %s us  max %s us%n", phase,
+            TimeUnit.NANOSECONDS.toMillis((long) (h.getMean() * h.getTotalCount())), (long) h.getMean() / 1000,
+            h.getValueAtPercentile(50) / 1000, h.getValueAtPercentile(90) / 1000, h.getValueAtPercentile(99) / 1000, h.getMaxValue() / 1000);
+   }
+
+   /**
+    * Starts LOOP_SIZE caches, spread over THREADS threads which all start at the same time.
+    */
+   private static StartupTimes startCaches(final EmbeddedCacheManager ecm, final Configuration c) throws Exception {
+      final CountDownLatch startSignal = new CountDownLatch(1);
+      ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+      List<Future<StartupTimes>> futures = new ArrayList<Future<StartupTimes>>(THREADS);
+      for (int t = 0; t < THREADS; t++) {
+         final int first = t;
+         futures.add(executor.submit(new Callable<StartupTimes>() {
+            public StartupTimes call() throws Exception {
+               StartupTimes times = new StartupTimes();
+               startSignal.await();
+               long allocatedBefore = MemoryProbe.allocatedBytes();
+               for (int i = first; i < LOOP_SIZE; i += THREADS) {
+                  final String name = "Cache-" + i;
+                  final long jmxBefore = TimingMBeanServerLookup.jmxNanos();
+                  final long start = System.nanoTime();
+                  ecm.defineConfiguration(name, c);
+                  final long defined = System.nanoTime();
+                  ecm.getCache(name);
+                  final long end = System.nanoTime();
+                  final long jmx = TimingMBeanServerLookup.jmxNanos() - jmxBefore;
+                  times.define.recordValue(defined - start);
+                  times.jmx.recordValue(jmx);
+                  times.start.recordValue(end - defined - jmx);
+                  times.total.recordValue(end - start);
+               }
+               times.allocatedBytes = allocatedBefore < 0 ? -1 : MemoryProbe.allocatedBytes() - allocatedBefore;
+               return times;
+            }
+         }));
+      }
+      startSignal.countDown();
+      executor.shutdown();
+      StartupTimes merged = new StartupTimes();
+      for (Future<StartupTimes> f : futures) {
+         merged.add(f.get());
+      }
+      return merged;
+   }
+
+   /**
+    * Per-cache startup times of each phase.
+    */
+   private static final class StartupTimes {
+      final LatencyHistogram total = new LatencyHistogram();
+      final LatencyHistogram define = new LatencyHistogram();
+      final LatencyHistogram start = new LatencyHistogram();
+      final LatencyHistogram jmx = new LatencyHistogram();
+      long allocatedBytes;
+
+      void add(StartupTimes other) {
+         total.add(other.total);
+         define.add(other.define);
+         start.add(other.start);
+         jmx.add(other.jmx);
+         allocatedBytes = allocatedBytes < 0 || other.allocatedBytes < 0 ? -1 : allocatedBytes + other.allocatedBytes;
+      }
    }
-   
+
    public static final String format(long bytes) {
       double val = bytes;
       int mag = 0;
@@ -0,0 +1,24 @@
+package org.infinispan.benchmark;
+
+import java.io.File;
+
+/**
+ * Where the progress monitor gets its numbers from: the workers of this JVM, or the forked nodes. The
+ * profiling of the measured phase also applies to the JVMs behind the source.
+ */
+interface StatsSource {
+
+   NodeStats collectStats() throws Exception;
+
+   /**
+    * Starts a flight recording in each JVM behind the source, see {@link FlightRecording}.
+    *
+    * @param file where the recording goes; forked nodes add their index to the name
+    */
+   void startProfiling(File file) throws Exception;
+
+   /**
+    * Stops and saves the recordings started by {@link #startProfiling(File)}, and summarizes them.
+    */
+   void stopProfiling() throws Exception;
+}
@@ -0,0 +1,80 @@
+package org.infinispan.benchmark;
+
+/**
+ * Adaptive warmup and measurement lengths for the progress monitor.
+ * <p>
+ * With bench.adaptiveWarmup=true the warmup ends as soon as the per-tick throughput and mean latency are
+ * stable: over the last bench.steadyStateTicks ticks (default 6) their coefficient of variation has to be at
+ * most bench.steadyStateCov (default 0.05) and bench.steadyStateLatencyCov (default 0.10). bench.warmupMinutes
+ * then only caps the warmup.
+ * <p>
+ * With bench.targetCiPercent set, the measurement stops once the 95% confidence interval of the mean per-tick
+ * throughput is within that many percent of the mean, after at least bench.minMeasureTicks ticks (default 12);
+ * bench.durationMinutes then only caps the measurement.
+ */
+final class SteadyState {
+
+   static final boolean ADAPTIVE_WARMUP = Boolean.getBoolean("bench.adaptiveWarmup");
+   static final double TARGET_CI_PERCENT = Double.parseDouble(System.getProperty("bench.targetCiPercent", "0")); //0 means fixed duration
+   private static final int WINDOW_TICKS = Integer.getInteger("bench.steadyStateTicks", 6);
+   private static final double MAX_THROUGHPUT_COV = Double.parseDouble(System.getProperty("bench.steadyStateCov", "0.05"));
+   private static final double MAX_LATENCY_COV = Double.parseDouble(System.getProperty("bench.steadyStateLatencyCov", "0.10"));
+   private static final int MIN_MEASURE_TICKS = Integer.getInteger("bench.minMeasureTicks", 12);
+
+   private final double[] throughputs = new double[WINDOW_TICKS];
+   private final double[] latencies = new double[WINDOW_TICKS];
+   private int warmupTicks;
+   private final CompareResults.Sample measured = new CompareResults.Sample();
+
+   static String describe() {
+      String warmup = ADAPTIVE_WARMUP ? "adaptive (throughput CoV <= " + MAX_THROUGHPUT_COV + ", latency CoV <= " + MAX_LATENCY_COV
+            + " over " + WINDOW_TICKS + " ticks)" : "fixed";
+      String measure = TARGET_CI_PERCENT > 0 ? "until the 95% CI is within " + TARGET_CI_PERCENT + "% (at least " + MIN_MEASURE_TICKS + " ticks)" : "fixed";
+      return "warmup " + warmup + ", measurement " + measure;
+   }
+
+   /**
+    * Adds a warmup tick.
+    *
+    * @return whether the steady state is reached
+    */
+   boolean warmupTick(double throughput, double meanLatency) {
+      throughputs[warmupTicks % WINDOW_TICKS] = throughput;
+      latencies[warmupTicks % WINDOW_TICKS] = meanLatency;
+      warmupTicks++;
+      return ADAPTIVE_WARMUP && warmupTicks >= WINDOW_TICKS && throughput > 0
+            && cov(throughputs) <= MAX_THROUGHPUT_COV && cov(latencies) <= MAX_LATENCY_COV;
+   }
+
+   /**
+    * @return the variation over the last ticks, for the report
+    */
+   String describeWindow() {
+      return String.format("throughput CoV %.1f%%, latency CoV %.1f%% over the last %s ticks", cov(throughputs) * 100, cov(latencies) * 100, WINDOW_TICKS);
+   }
+
+   /**
+    * Adds a measurement tick.
+    *
+    * @return whether the measurement is precise enough to stop
+    */
+   boolean measureTick(double throughput) {
+      measured.add(throughput);
+      return TARGET_CI_PERCENT > 0 && measured.n >= MIN_MEASURE_TICKS && ciPercent() <= TARGET_CI_PERCENT;
+   }
+
+   /**
+    * @return the half width of the 95% confidence interval of the mean throughput, in percent of the mean
+    */
+   double ciPercent() {
+      return measured.mean() == 0 ? Double.POSITIVE_INFINITY : measured.halfWidth() * 100 / measured.mean();
+   }
+
+   private static double cov(double[] values) {
+      CompareResults.Sample sample = new CompareResults.Sample();
+      for (double v : values) {
+         sample.add(v);
+      }
+      return sample.mean() == 0 ? 0 : Math.sqrt(sample.variance()) / sample.mean();
+   }
+}
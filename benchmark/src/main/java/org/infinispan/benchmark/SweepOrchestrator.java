@@ -0,0 +1,448 @@
+package org.infinispan.benchmark;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a whole parameter sweep, in place of the version x nodes loop of bench.sh:
+ * <pre>
+ *    java -cp benchmark/target/classes org.infinispan.benchmark.SweepOrchestrator sweep.properties
+ * </pre>
+ * Each line of the sweep file is an axis of the matrix, a system property with a comma separated list of
+ * values, e.g.
+ * <pre>
+ *    infinispanVersion=5.1.0.CR3,5.1.1.FINAL
+ *    bench.nodes=1,2,4,8,16
+ *    bench.dist=true,false
+ * </pre>
+ * and every combination is a cell. The classpath of each Infinispan version is resolved once with Maven's
+ * dependency plugin and the benchmark compiled against it, then each cell runs bench.sweepMain (default
+ * Transactional) in a JVM of its own, with bench.sweepJvmArgs; the bench.* system properties given to the
+ * orchestrator apply to all cells. Cells write their results and output to a directory of their own under
+ * bench.sweepDir (default "sweep").
+ * <p>
+ * bench.sweepParallel cells (default 1) run at once; on Linux each one is then pinned to its own share of
+ * the cores with taskset, and gets its own JGroups ports. A cell failing or exceeding
+ * bench.sweepCellTimeoutMinutes doesn't stop the sweep. The outcome of each cell is kept in a state file, so
+ * running the same sweep again only runs the cells which didn't succeed. Finally the measured throughput and
+ * latencies of all cells are aggregated in report.csv.
+ */
+public class SweepOrchestrator {
+
+   private static final String SWEEP_DIR = System.getProperty("bench.sweepDir", "sweep");
+   private static final String MODULE_DIR = System.getProperty("bench.sweepModule", "benchmark"); //where pom.xml and src/main are
+   private static final String MAIN = System.getProperty("bench.sweepMain", "org.infinispan.benchmark.Transactional");
+   private static final String CELL_JVM_ARGS = System.getProperty("bench.sweepJvmArgs", "-Xms2G -Xmx2G -Djava.net.preferIPv4Stack=true");
+   private static final int PARALLEL = Integer.getInteger("bench.sweepParallel", 1);
+   private static final long CELL_TIMEOUT_MINUTES = Long.getLong("bench.sweepCellTimeoutMinutes", 180);
+
+   private static final String VERSION_AXIS = "infinispanVersion";
+   private static final String DONE = "done";
+
+   private final File sweepDir = new File(SWEEP_DIR);
+   private final File stateFile = new File(sweepDir, "sweep-state.properties");
+   private final Properties state = new Properties();
+   private final Map<String, String[]> axes;
+   private final Map<String, String> classpaths = new LinkedHashMap<String, String>();
+
+   public static void main(String[] args) throws Exception {
+      if (args.length != 1) {
+         System.out.println("Usage: SweepOrchestrator <sweep file>");
+         System.exit(2);
+      }
+      boolean allDone = new SweepOrchestrator(readAxes(new File(args[0]))).run();
+      System.exit(allDone ? 0 : 1);
+   }
+
+   SweepOrchestrator(Map<String, String[]> axes) {
+      this.axes = axes;
+      if (!axes.containsKey(VERSION_AXIS))
+         throw new IllegalArgumentException("The sweep file must list the Infinispan versions as " + VERSION_AXIS + "=...");
+   }
+
+   /**
+    * Reads the axes in the order of the file, which is the order of the cells and of the report columns.
+    */
+   private static Map<String, String[]> readAxes(File file) throws IOException {
+      Map<String, String[]> axes = new LinkedHashMap<String, String[]>();
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) continue;
+            int eq = line.indexOf('=');
+            if (eq < 0) throw new IllegalArgumentException("Expected property=value1,value2... in " + file + ", got " + line);
+            String[] values = line.substring(eq + 1).split(",");
+            for (int i = 0; i < values.length; i++) {
+               values[i] = values[i].trim();
+            }
+            axes.put(line.substring(0, eq).trim(), values);
+         }
+      } finally {
+         reader.close();
+      }
+      return axes;
+   }
+
+   /**
+    * @return whether all the cells succeeded
+    */
+   boolean run() throws Exception {
+      if (!sweepDir.isDirectory() && !sweepDir.mkdirs()) throw new IOException("Unable to create " + sweepDir);
+      if (stateFile.exists()) {
+         FileInputStream in = new FileInputStream(stateFile);
+         try {
+            state.load(in);
+         } finally {
+            in.close();
+         }
+      }
+      List<Map<String, String>> cells = cells();
+      List<Map<String, String>> pending = new ArrayList<Map<String, String>>();
+      for (Map<String, String> cell : cells) {
+         if (!DONE.equals(state.getProperty(cellId(cell)))) pending.add(cell);
+      }
+      System.out.printf("Sweep of %s cells, %s already done, %s at a time%n", cells.size(), cells.size() - pending.size(), PARALLEL);
+
+      for (String version : axes.get(VERSION_AXIS)) {
+         classpaths.put(version, prepareVersion(version));
+      }
+
+      BlockingQueue<Integer> slots = new ArrayBlockingQueue<Integer>(PARALLEL);
+      for (int i = 0; i < PARALLEL; i++) {
+         slots.add(i);
+      }
+      ExecutorService executor = Executors.newFixedThreadPool(PARALLEL);
+      List<Future<?>> futures = new ArrayList<Future<?>>();
+      for (final Map<String, String> cell : pending) {
+         futures.add(executor.submit(new CellRun(cell, slots)));
+      }
+      for (Future<?> f : futures) {
+         f.get();
+      }
+      executor.shutdown();
+      return report(cells);
+   }
+
+   private List<Map<String, String>> cells() {
+      List<Map<String, String>> cells = new ArrayList<Map<String, String>>();
+      cells.add(new LinkedHashMap<String, String>());
+      for (Map.Entry<String, String[]> axis : axes.entrySet()) {
+         List<Map<String, String>> expanded = new ArrayList<Map<String, String>>();
+         for (Map<String, String> cell : cells) {
+            for (String value : axis.getValue()) {
+               Map<String, String> c = new LinkedHashMap<String, String>(cell);
+               c.put(axis.getKey(), value);
+               expanded.add(c);
+            }
+         }
+         cells = expanded;
+      }
+      return cells;
+   }
+
+   private static String cellId(Map<String, String> cell) {
+      StringBuilder sb = new StringBuilder();
+      for (Map.Entry<String, String> e : cell.entrySet()) {
+         if (sb.length() > 0) sb.append(',');
+         sb.append(e.getKey()).append('=').append(e.getValue());
+      }
+      return sb.toString();
+   }
+
+   private File cellDir(Map<String, String> cell) {
+      StringBuilder sb = new StringBuilder();
+      for (Map.Entry<String, String> e : cell.entrySet()) {
+         if (sb.length() > 0) sb.append('_');
+         String key = e.getKey().startsWith("bench.") ? e.getKey().substring(6) : e.getKey();
+         if (!key.equals(VERSION_AXIS)) sb.append(key).append('-');
+         sb.append(e.getValue());
+      }
+      return new File(sweepDir, sb.toString().replaceAll("[^A-Za-z0-9._-]", "-"));
+   }
+
+   /**
+    * Resolves the dependencies of the given version, once for all sweeps, and compiles the benchmark against them.
+    *
+    * @return the classpath of the cells of that version
+    */
+   private String prepareVersion(String version) throws Exception {
+      File versionDir = new File(sweepDir, "infinispan-" + version);
+      File classpathFile = new File(versionDir, "classpath.txt");
+      if (!classpathFile.exists()) {
+         System.out.printf("Resolving the dependencies of Infinispan %s%n", version);
+         if (!versionDir.isDirectory() && !versionDir.mkdirs()) throw new IOException("Unable to create " + versionDir);
+         List<String> command = new ArrayList<String>();
+         command.add("mvn");
+         command.add("-q");
+         command.add("-f");
+         command.add(new File(MODULE_DIR, "pom.xml").getPath());
+         command.add("dependency:build-classpath");
+         command.add("-DinfinispanVersion=" + version);
+         command.add("-Dmdep.outputFile=" + classpathFile.getAbsolutePath());
+         ProcessBuilder pb = new ProcessBuilder(command);
+         pb.redirectErrorStream(true);
+         Process process = pb.start();
+         ClusterCoordinator.pipeOutput(process.getInputStream(), "[mvn " + version + "] ");
+         if (process.waitFor() != 0 || !classpathFile.exists())
+            throw new IllegalStateException("Unable to resolve the dependencies of Infinispan " + version);
+      }
+      String dependencies = readFirstLine(classpathFile);
+
+      File classes = new File(versionDir, "classes");
+      if (!classes.isDirectory() && !classes.mkdirs()) throw new IOException("Unable to create " + classes);
+      List<String> options = new ArrayList<String>();
+      options.add("-nowarn");
+      options.add("-d");
+      options.add(classes.getPath());
+      options.add("-cp");
+      options.add(dependencies);
+      for (File source : sources(new File(MODULE_DIR, "src/main/java"), new ArrayList<File>())) {
+         options.add(source.getPath());
+      }
+      JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+      if (compiler == null) throw new IllegalStateException("The orchestrator must run on a JDK to compile the benchmark");
+      System.out.printf("Compiling the benchmark against Infinispan %s%n", version);
+      if (compiler.run(null, null, null, options.toArray(new String[options.size()])) != 0)
+         throw new IllegalStateException("The benchmark doesn't compile against Infinispan " + version);
+      return classes.getAbsolutePath() + File.pathSeparator + new File(MODULE_DIR, "src/main/resources").getAbsolutePath()
+            + File.pathSeparator + dependencies;
+   }
+
+   private static List<File> sources(File dir, List<File> found) {
+      File[] files = dir.listFiles();
+      if (files == null) return found;
+      for (File f : files) {
+         if (f.isDirectory()) sources(f, found);
+         else if (f.getName().endsWith(".java")) found.add(f);
+      }
+      return found;
+   }
+
+   private static String readFirstLine(File file) throws IOException {
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+         String line = reader.readLine();
+         return line == null ? "" : line.trim();
+      } finally {
+         reader.close();
+      }
+   }
+
+   private synchronized void recordState(Map<String, String> cell, String outcome) throws IOException {
+      state.setProperty(cellId(cell), outcome);
+      File tmp = new File(sweepDir, stateFile.getName() + ".tmp");
+      FileOutputStream out = new FileOutputStream(tmp);
+      try {
+         state.store(out, "Sweep state: done cells are skipped when the sweep runs again");
+      } finally {
+         out.close();
+      }
+      if (!tmp.renameTo(stateFile)) {
+         stateFile.delete();
+         if (!tmp.renameTo(stateFile)) throw new IOException("Unable to write " + stateFile);
+      }
+   }
+
+   /**
+    * The CPUs of the given slot, or null when cells aren't pinned.
+    */
+   private static String cpus(int slot) {
+      final int cores = Runtime.getRuntime().availableProcessors();
+      if (PARALLEL < 2 || cores / PARALLEL < 1 || !(new File("/usr/bin/taskset").exists() || new File("/bin/taskset").exists()))
+         return null;
+      final int perSlot = cores / PARALLEL;
+      return (slot * perSlot) + "-" + ((slot + 1) * perSlot - 1);
+   }
+
+   private final class CellRun implements Runnable {
+      private final Map<String, String> cell;
+      private final BlockingQueue<Integer> slots;
+
+      CellRun(Map<String, String> cell, BlockingQueue<Integer> slots) {
+         this.cell = cell;
+         this.slots = slots;
+      }
+
+      public void run() {
+         final String id = cellId(cell);
+         Integer slot = null;
+         try {
+            slot = slots.take();
+            System.out.printf("Running %s%n", id);
+            final long start = System.nanoTime();
+            String outcome = runCell(slot);
+            recordState(cell, outcome);
+            System.out.printf("Finished %s in %s minutes: %s%n", id, TimeUnit.NANOSECONDS.toMinutes(System.nanoTime() - start), outcome);
+         } catch (Exception e) {
+            System.out.printf("Cell %s failed: %s%n", id, e);
+            try {
+               recordState(cell, "failed: " + e);
+            } catch (IOException ignored) {
+               // reported above
+            }
+         } finally {
+            if (slot != null) slots.add(slot);
+         }
+      }
+
+      private String runCell(int slot) throws Exception {
+         File dir = cellDir(cell);
+         if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Unable to create " + dir);
+         File[] previous = dir.listFiles();
+         if (previous != null) {
+            for (File f : previous) {
+               if (f.getName().endsWith(".csv")) f.delete();
+            }
+         }
+
+         List<String> command = new ArrayList<String>();
+         String cpus = cpus(slot);
+         if (cpus != null) {
+            command.add("taskset");
+            command.add("-c");
+            command.add(cpus);
+         }
+         command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+         for (String arg : CELL_JVM_ARGS.trim().split("\\s+")) {
+            if (arg.length() > 0) command.add(arg);
+         }
+         command.add("-cp");
+         command.add(classpaths.get(cell.get(VERSION_AXIS)));
+         for (Map.Entry<Object, Object> e : System.getProperties().entrySet()) {
+            String key = (String) e.getKey();
+            if ((key.startsWith("bench.") && !key.startsWith("bench.sweep")) || key.startsWith("jgroups.") || key.startsWith("log4j."))
+               command.add("-D" + key + "=" + e.getValue());
+         }
+         for (Map.Entry<String, String> e : cell.entrySet()) {
+            if (!e.getKey().equals(VERSION_AXIS)) command.add("-D" + e.getKey() + "=" + e.getValue());
+         }
+         // keep the clusters of cells running side by side apart
+         command.add("-Djgroups.udp.mcast_port=" + (46655 + slot));
+         command.add("-Djgroups.tcp.port=" + (7800 + slot * 100));
+         command.add("-Djgroups.tcpping.initial_hosts=127.0.0.1[" + (7800 + slot * 100) + "]");
+         command.add("-Dbench.resultsDir=" + dir.getAbsolutePath());
+         command.add(MAIN);
+
+         ProcessBuilder pb = new ProcessBuilder(command);
+         pb.redirectErrorStream(true);
+         Process process = pb.start();
+         Thread copier = copy(process.getInputStream(), new FileOutputStream(new File(dir, "output.log")));
+         final long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(CELL_TIMEOUT_MINUTES);
+         Integer exitCode = null;
+         while (exitCode == null) {
+            try {
+               exitCode = process.exitValue();
+            } catch (IllegalThreadStateException e) {
+               if (System.nanoTime() > deadline) {
+                  process.destroy();
+                  copier.join(10000);
+                  return "failed: timeout after " + CELL_TIMEOUT_MINUTES + " minutes";
+               }
+               Thread.sleep(1000);
+            }
+         }
+         copier.join();
+         return exitCode == 0 ? DONE : "failed: exit code " + exitCode;
+      }
+   }
+
+   private static Thread copy(final InputStream in, final OutputStream out) {
+      Thread t = new Thread("SweepOutput") {
+         public void run() {
+            byte[] buffer = new byte[8192];
+            try {
+               int n;
+               while ((n = in.read(buffer)) >= 0) {
+                  out.write(buffer, 0, n);
+               }
+            } catch (IOException e) {
+               // process gone
+            } finally {
+               try {
+                  out.close();
+               } catch (IOException ignored) {
+                  // nothing left to do
+               }
+            }
+         }
+      };
+      t.setDaemon(true);
+      t.start();
+      return t;
+   }
+
+   /**
+    * Prints and writes report.csv: one line per cell, with the means over the measured ticks of its results.
+    *
+    * @return whether all the cells succeeded
+    */
+   private boolean report(List<Map<String, String>> cells) throws IOException {
+      final String[] metrics = { "reads_per_s", "writes_per_s", "read_p99_us", "write_p99_us", "commit_p99_us" };
+      File reportFile = new File(sweepDir, "report.csv");
+      PrintWriter out = new PrintWriter(new FileOutputStream(reportFile));
+      boolean allDone = true;
+      try {
+         StringBuilder header = new StringBuilder();
+         for (String axis : axes.keySet()) {
+            header.append(axis).append(',');
+         }
+         header.append("status");
+         for (String metric : metrics) {
+            header.append(',').append(metric);
+         }
+         out.println(header);
+         System.out.println();
+         System.out.println(header.toString().replace(',', '\t'));
+         for (Map<String, String> cell : cells) {
+            StringBuilder line = new StringBuilder();
+            for (String value : cell.values()) {
+               line.append(value).append(',');
+            }
+            String outcome = state.getProperty(cellId(cell), "not run");
+            allDone &= DONE.equals(outcome);
+            line.append(outcome.replace(',', ';'));
+            CompareResults.ResultSet results = null;
+            try {
+               if (DONE.equals(outcome)) results = CompareResults.ResultSet.load(cellDir(cell));
+            } catch (IllegalArgumentException e) {
+               // no results file, e.g. a benchmark which doesn't write any
+            }
+            for (String metric : metrics) {
+               line.append(',');
+               if (results != null && results.sample(metric).n > 0)
+                  line.append(String.format(Locale.ENGLISH, "%.1f", results.sample(metric).mean()));
+            }
+            out.println(line);
+            System.out.println(line.toString().replace(',', '\t'));
+         }
+      } finally {
+         out.close();
+      }
+      System.out.printf("%nReport written to %s%n", reportFile);
+      return allDone;
+   }
+}
@@ -0,0 +1,117 @@
+package org.infinispan.benchmark;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A thread of the local cache benchmarks (EvictionTest, PersistenceTest), running an operation on the keys
+ * picked by its selector until stopped and timing each one. The counters are reset when the measurement
+ * starts and only read once the thread is done.
+ */
+abstract class TimedWorker extends Thread {
+
+   private static final int VALUES = 64;
+
+   private final KeySpace keys;
+   private final KeySelector selector;
+   protected final Random random;
+   final LatencyHistogram latencies = new LatencyHistogram();
+   private volatile boolean measuring;
+   private volatile boolean stopped;
+   long ops;
+   long allocated; // by this thread while measuring, -1 if unknown
+
+   TimedWorker(String name, KeySpace keys, KeySelector selector, Random random) {
+      super(name);
+      this.keys = keys;
+      this.selector = selector;
+      this.random = random;
+   }
+
+   /**
+    * The timed operation, on the key of the given index.
+    */
+   protected abstract void operate(int index, String key);
+
+   /**
+    * Resets the counters of the subclass when the measurement starts.
+    */
+   protected void reset() {
+   }
+
+   public final void run() {
+      boolean measured = false;
+      long allocatedBefore = 0;
+      while (!stopped) {
+         if (!measured && measuring) {
+            measured = true;
+            ops = 0;
+            latencies.reset();
+            reset();
+            allocatedBefore = MemoryProbe.allocatedBytes();
+         }
+         final int index = selector.nextIndex(random);
+         final String key = keys.key(index);
+         final long start = System.nanoTime();
+         operate(index, key);
+         latencies.recordValue(System.nanoTime() - start);
+         ops++;
+      }
+      allocated = allocatedBefore < 0 ? -1 : MemoryProbe.allocatedBytes() - allocatedBefore;
+   }
+
+   /**
+    * Starts the workers, which then run unmeasured until {@link #measure} is invoked.
+    */
+   static void startAll(List<? extends TimedWorker> workers) {
+      for (TimedWorker worker : workers) {
+         worker.start();
+      }
+   }
+
+   /**
+    * Resets the counters of the workers, lets them run for the given time and stops them.
+    *
+    * @return the measured time, in nanoseconds
+    */
+   static long measure(List<? extends TimedWorker> workers, int seconds) throws InterruptedException {
+      for (TimedWorker worker : workers) {
+         worker.measuring = true;
+      }
+      final long start = System.nanoTime();
+      Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+      for (TimedWorker worker : workers) {
+         worker.stopped = true;
+      }
+      for (TimedWorker worker : workers) {
+         worker.join();
+      }
+      return System.nanoTime() - start;
+   }
+
+   /**
+    * @return the key space of "key" followed by the index, as written by the benchmarks
+    */
+   static KeySpace keys(int size) {
+      return new KeySpace(size) {
+         protected String generate(int index) {
+            return "key" + index;
+         }
+      }.init();
+   }
+
+   /**
+    * @return a few random values of the given size, shared by all the writes so that the allocation per
+    *         operation is the cache's own
+    */
+   static byte[][] values(int size) {
+      byte[][] values = new byte[VALUES][];
+      Random r = new Random(1);
+      for (int i = 0; i < values.length; i++) {
+         values[i] = new byte[size];
+         r.nextBytes(values[i]);
+      }
+      return values;
+   }
+}
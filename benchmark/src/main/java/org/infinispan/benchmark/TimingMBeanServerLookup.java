@@ -0,0 +1,51 @@
+package org.infinispan.benchmark;
+
+import org.infinispan.jmx.MBeanServerLookup;
+
+import javax.management.MBeanServer;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Properties;
+
+/**
+ * Hands Infinispan the platform MBeanServer, wrapped to measure how long each thread spends registering
+ * and unregistering MBeans; used by StartupSpeedTest to break cache startup down.
+ */
+public class TimingMBeanServerLookup implements MBeanServerLookup {
+
+   private static final ThreadLocal<long[]> JMX_NANOS = new ThreadLocal<long[]>() {
+      @Override
+      protected long[] initialValue() {
+         return new long[1];
+      }
+   };
+
+   private static final MBeanServer TIMED_SERVER = (MBeanServer) Proxy.newProxyInstance(
+         TimingMBeanServerLookup.class.getClassLoader(), new Class<?>[] { MBeanServer.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+               final boolean timed = method.getName().endsWith("registerMBean");
+               final long start = timed ? System.nanoTime() : 0;
+               try {
+                  return method.invoke(ManagementFactory.getPlatformMBeanServer(), args);
+               } catch (InvocationTargetException e) {
+                  throw e.getCause();
+               } finally {
+                  if (timed) JMX_NANOS.get()[0] += System.nanoTime() - start;
+               }
+            }
+         });
+
+   public MBeanServer getMBeanServer(Properties properties) {
+      return TIMED_SERVER;
+   }
+
+   /**
+    * @return the time the current thread spent (un)registering MBeans so far, in nanoseconds
+    */
+   static long jmxNanos() {
+      return JMX_NANOS.get()[0];
+   }
+}
@@ -5,12 +5,18 @@ import org.infinispan.Version;
 import org.infinispan.config.Configuration;
 import org.infinispan.config.Configuration.CacheMode;
 import org.infinispan.config.FluentConfiguration.ClusteringConfig;
+import org.infinispan.config.FluentConfiguration.LockingConfig;
 import org.infinispan.config.GlobalConfiguration;
+import org.infinispan.distribution.DistributionManager;
 import org.infinispan.eviction.EvictionStrategy;
 import org.infinispan.manager.DefaultCacheManager;
 import org.infinispan.remoting.transport.jgroups.JGroupsTransport;
 import org.infinispan.transaction.lookup.DummyTransactionManagerLookup;
+import org.infinispan.transaction.lookup.TransactionManagerLookup;
 import org.infinispan.util.Util;
+import org.infinispan.util.concurrent.IsolationLevel;
+import org.infinispan.util.concurrent.FutureListener;
+import org.infinispan.util.concurrent.NotifyingFuture;
 import org.infinispan.util.logging.Log;
 import org.infinispan.util.logging.LogFactory;
 
@@ -18,44 +24,92 @@ import javax.transaction.TransactionManager;
 import javax.transaction.xa.XAException;
 import javax.transaction.xa.XAResource;
 import javax.transaction.xa.Xid;
+import java.io.File;
 import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Random;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.TreeSet;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class Transactional {
 
    // ******* CONSTANTS *******
    private static final int PAYLOAD_SIZE = Integer.getInteger("bench.payloadsize", 10240);
+   private static final int VALUE_POOL = Integer.getInteger("bench.valuePool", 1024); //distinct pre-generated values
+   private static final ValueGenerator VALUE_GENERATOR = new ValueGenerator(PAYLOAD_SIZE);
    private static final int NODES = Integer.getInteger("bench.nodes", 8);
    private static final int NUM_KEYS = Integer.getInteger("bench.numkeys", 500);
+   private static final int NUM_READ_KEYS = Integer.getInteger("bench.numReadKeys", NUM_KEYS * 2);
+   private static final int WRITE_OVERLAP_PERCENT = Integer.getInteger("bench.writeOverlapPercent", 0); //% of writes going to keys shared by all nodes
+   private static final int SHARED_KEYS = Integer.getInteger("bench.sharedKeys", NUM_KEYS); //the fewer, the more the shared writes conflict
+   private static final boolean CONTENTION = Boolean.getBoolean("bench.contention"); //failed transactions are counted, not fatal
+   private static final boolean LOCK_STRIPING = Boolean.getBoolean("bench.lockStriping");
+   private static final String ISOLATION_LEVEL = System.getProperty("bench.isolationLevel"); //unset keeps the Infinispan default
+   private static final long LOCK_TIMEOUT = Long.getLong("bench.lockAcquisitionTimeout", CONTENTION ? 1000 : 60000);
    private static final boolean USE_TX = Boolean.getBoolean("bench.transactional");
    private static final boolean USE_DISTRIBUTION = Boolean.getBoolean("bench.dist");
    private static final boolean L1_ENABLED = Boolean.getBoolean("bench.l1Enabled");
+   private static final boolean FETCH_IN_MEMORY_STATE = Boolean.getBoolean("bench.fetchInMemoryState"); //REPL state transfer to joiners
    private static final boolean EXTRA_QUIET = Boolean.getBoolean("bench.extraQuiet");
    private static final int NUM_VNODES = Integer.getInteger("bench.vnodes", 48);
    private static final int WARMUP_MINUTES = Integer.getInteger("bench.warmupMinutes", 20);
    private static final int TESTTIME_MINUTES = Integer.getInteger("bench.durationMinutes", 40);
-   private static final Random RANDOM = new Random(Long.getLong("bench.randomSeed", 173)); //pick a number, needs to be the same for all benchmarked versions!
+   private static final long RANDOM_SEED = Long.getLong("bench.randomSeed", 173); //pick a number, needs to be the same for all benchmarked versions!
    private static final int READER_THREADS = Integer.getInteger("bench.readerThreads", 100);
    private static final int WRITER_THREADS = Integer.getInteger("bench.writerThreads", 70);
    private static final String JGROUPS_CONF = System.getProperty("bench.jgroups_conf", "bench-jgroups.xml");
-
+   private static final int TX_READS = Integer.getInteger("bench.txReads", 1); //gets per reader transaction
+   private static final int TX_WRITES = Integer.getInteger("bench.txWrites", 1); //writes per writer transaction
+   private static final boolean PUT_ALL = Boolean.getBoolean("bench.putAll");
+   private static final boolean READ_MODIFY_WRITE = Boolean.getBoolean("bench.readModifyWrite");
+   private static final boolean FORCE_2PC = Boolean.parseBoolean(System.getProperty("bench.force2PC", "true"));
+   private static final int XA_RESOURCES = Integer.getInteger("bench.xaResources", 1); //dummy resources enlisted when forcing 2PC
+   private static final String TM_LOOKUP = System.getProperty("bench.transactionManagerLookup", DummyTransactionManagerLookup.class.getName());
+   private static final boolean SELF_TEST = Boolean.getBoolean("bench.selfTest");
+   private static final int NODE_INDEX = Integer.getInteger("bench.nodeIndex", -1); //set when forked by ClusterCoordinator
+   private static final int COORDINATOR_PORT = Integer.getInteger("bench.coordinatorPort", -1);
+   private static final long TARGET_OPS_PER_SEC = Long.getLong("bench.targetOpsPerSec", 0); //0 means closed loop
    private static final int NUM_THREADS = READER_THREADS + WRITER_THREADS;
-   private static final String[] KEYS_R = new String[NUM_KEYS*2];
-   private static final String[][] KEYS_W_PERNODE = new String[NODES][NUM_KEYS];
+   private static final int CONCURRENCY_LEVEL = Integer.getInteger("bench.concurrencyLevel", NUM_THREADS * 4);
+   private static final int[] WORKER_NODES = assignNodes(); //writers first, then readers
+   private static final int WRITE_PERCENT = Integer.getInteger("bench.writePercent", NUM_THREADS == 0 ? 0 : WRITER_THREADS * 100 / NUM_THREADS);
+   private static final boolean OPEN_LOOP = TARGET_OPS_PER_SEC > 0;
+   private static final double SUSTAINED_TOLERANCE = 0.99; //fraction of the target rate we need to achieve
+   private static final String ENGINE = System.getProperty("bench.engine", "platform"); //platform, virtual or async
+   private static final boolean VIRTUAL_THREADS = ENGINE.equals("virtual");
+   private static final boolean ASYNC = ENGINE.equals("async");
+   private static final int ASYNC_IN_FLIGHT = Integer.getInteger("bench.asyncInFlight", 16); //outstanding operations per async worker
+   private static final int ASYNC_EXECUTOR_THREADS = Integer.getInteger("bench.asyncExecutorThreads", 0); //0 keeps the Infinispan default
+   private static final int LATENCY_STRIPES = Runtime.getRuntime().availableProcessors() * 4; //recorders shared by virtual thread workers
+   private static final int LOCALITY_SAMPLING_MASK = 15; //with bench.metrics, readers check the locality of one get in 16
+   private static final KeySpace KEYS_R;
+   private static final KeySpace[] KEYS_W_PERNODE = new KeySpace[NODES];
+   private static final KeySpace KEYS_W_SHARED;
 
-   private static final AtomicLong numWrites = new AtomicLong(0);
-   private static final AtomicLong numReads = new AtomicLong(0);
    private static final AtomicBoolean quitWorkers = new AtomicBoolean(false);
    private final CountDownLatch endSignal = new CountDownLatch(1);
+   private final List<Worker> workers = new ArrayList<Worker>(NUM_THREADS);
+   private final List<Recorders> recorders = new ArrayList<Recorders>();
+   private MembershipScenario scenario;
+   private final List<DefaultCacheManager> managers = new ArrayList<DefaultCacheManager>(); //whose bytes sent are collected
+   private double[] marshallingCost; //measured on node 0, reported through the stats in forked mode too
+   private static Object[] values; //generated before the nodes start, see ValueGenerator
 
    private static final Log log = LogFactory.getLog(Transactional.class);
    private static final boolean trace = log.isTraceEnabled();
@@ -63,67 +117,172 @@ public class Transactional {
    private static final Timer timer = new Timer( "TestProgressMonitor", true );
    private static final NumberFormat NF = NumberFormat.getInstance();//Not threadsafe - one thread only using it
    
-   private static void printConfiguration() {
-      System.out.println("Payload size:\t" + PAYLOAD_SIZE);
+   static void printConfiguration() {
+      if (SELF_TEST)
+         System.out.println("SELF TEST:\tworkers run against a no-op cache");
+      System.out.println("Values:\t" + VALUE_GENERATOR.describe() + " (pool of " + VALUE_POOL + ")");
       System.out.println("Number of nodes:\t" + NODES);
       System.out.println("Using transactions:\t" + USE_TX);
+      if (USE_TX) {
+         System.out.println("Forcing 2PC:\t" + FORCE_2PC + (FORCE_2PC ? " (" + XA_RESOURCES + " extra XA resources)" : ""));
+         System.out.println("Transaction manager lookup:\t" + TM_LOOKUP);
+      }
+      System.out.println("Reads per reader transaction:\t" + TX_READS);
+      System.out.println("Writes per writer transaction:\t" + TX_WRITES + (PUT_ALL ? " (putAll)" : "") + (READ_MODIFY_WRITE ? " (read-modify-write)" : ""));
       System.out.println("Using distribution:\t" + USE_DISTRIBUTION);
+      if (!USE_DISTRIBUTION)
+         System.out.println("Fetching in-memory state:\t" + FETCH_IN_MEMORY_STATE);
+      if (MembershipScenario.isEnabled())
+         System.out.println("Membership changes:\t" + MembershipScenario.SCHEDULE + " (" + MembershipScenario.SPARE_NODES + " spare nodes)");
+      System.out.println("Network profile:\t" + NetworkProfile.describe()
+            + (NetworkProfile.isSupported(JGROUPS_CONF) ? "" : " - IGNORED by " + JGROUPS_CONF));
       System.out.println("Number of Virtual nodes:\t" + NUM_VNODES);
       System.out.println("Number of Writing threads:\t" + WRITER_THREADS);
       System.out.println("Number of Reading threads:\t" + READER_THREADS);
+      System.out.println("Keys written per node:\t" + NUM_KEYS);
+      System.out.println("Keys read:\t" + NUM_READ_KEYS);
+      System.out.println("Key distribution:\t" + KeySelector.describe());
+      System.out.println("Writes on shared keys:\t" + WRITE_OVERLAP_PERCENT + "% (" + SHARED_KEYS + " shared keys)");
+      System.out.println("Locking:\t" + (LOCK_STRIPING ? "lock striping" : "per-entry locks") + ", concurrency level " + CONCURRENCY_LEVEL
+            + ", isolation level " + (ISOLATION_LEVEL == null ? "default" : ISOLATION_LEVEL) + ", timeout " + LOCK_TIMEOUT + " ms");
+      if (CONTENTION)
+         System.out.println("Contention mode:\tfailed transactions are counted and the workers go on, lock waits are measured");
+      if (OPEN_LOOP) {
+         System.out.println("Target operations/second:\t" + TARGET_OPS_PER_SEC);
+         System.out.println("Write percentage:\t" + WRITE_PERCENT);
+      }
+      System.out.println("Warmup and duration:\t" + SteadyState.describe());
+      System.out.println("Worker engine:\t" + ENGINE + (ASYNC ? " (" + ASYNC_IN_FLIGHT + " operations in flight per worker)" : ""));
+      if (MetricsRegistry.ENABLED)
+         System.out.println("Metrics per node:\tMBeans and a snapshot file, updated every 10 seconds");
+      if (FlightRecording.ENABLED)
+         System.out.println("Profiling:\tflight recording of the measured phase, saved next to the results");
+   }
+
+   /**
+    * The effective configuration, keyed by the system property setting it, as recorded in the results file.
+    */
+   static Map<String, Object> configuration() {
+      Map<String, Object> cfg = new LinkedHashMap<String, Object>();
+      cfg.put("bench.payloadsize", PAYLOAD_SIZE);
+      cfg.put("bench.values", VALUE_GENERATOR.describe());
+      cfg.put("bench.valuePool", VALUE_POOL);
+      cfg.put("bench.nodes", NODES);
+      cfg.put("bench.numkeys", NUM_KEYS);
+      cfg.put("bench.numReadKeys", NUM_READ_KEYS);
+      cfg.put("bench.transactional", USE_TX);
+      cfg.put("bench.force2PC", FORCE_2PC);
+      cfg.put("bench.xaResources", XA_RESOURCES);
+      cfg.put("bench.transactionManagerLookup", TM_LOOKUP);
+      cfg.put("bench.txReads", TX_READS);
+      cfg.put("bench.txWrites", TX_WRITES);
+      cfg.put("bench.putAll", PUT_ALL);
+      cfg.put("bench.readModifyWrite", READ_MODIFY_WRITE);
+      cfg.put("bench.dist", USE_DISTRIBUTION);
+      cfg.put("bench.l1Enabled", L1_ENABLED);
+      cfg.put("bench.fetchInMemoryState", FETCH_IN_MEMORY_STATE);
+      cfg.put("bench.vnodes", NUM_VNODES);
+      cfg.put("bench.readerThreads", READER_THREADS);
+      cfg.put("bench.writerThreads", WRITER_THREADS);
+      cfg.put("bench.keyDistribution", KeySelector.describe());
+      cfg.put("bench.writeOverlapPercent", WRITE_OVERLAP_PERCENT);
+      cfg.put("bench.sharedKeys", SHARED_KEYS);
+      cfg.put("bench.contention", CONTENTION);
+      cfg.put("bench.lockStriping", LOCK_STRIPING);
+      cfg.put("bench.concurrencyLevel", CONCURRENCY_LEVEL);
+      cfg.put("bench.isolationLevel", ISOLATION_LEVEL == null ? "default" : ISOLATION_LEVEL);
+      cfg.put("bench.lockAcquisitionTimeout", LOCK_TIMEOUT);
+      cfg.put("bench.targetOpsPerSec", TARGET_OPS_PER_SEC);
+      cfg.put("bench.writePercent", WRITE_PERCENT);
+      cfg.put("bench.warmupMinutes", WARMUP_MINUTES);
+      cfg.put("bench.durationMinutes", TESTTIME_MINUTES);
+      cfg.put("bench.adaptiveWarmup", SteadyState.ADAPTIVE_WARMUP);
+      cfg.put("bench.targetCiPercent", SteadyState.TARGET_CI_PERCENT);
+      cfg.put("bench.randomSeed", RANDOM_SEED);
+      cfg.put("bench.jgroups_conf", JGROUPS_CONF);
+      cfg.put("bench.networkProfile", NetworkProfile.PROFILE);
+      cfg.put(NetworkProfile.OUT_DELAY, System.getProperty(NetworkProfile.OUT_DELAY));
+      cfg.put(NetworkProfile.IN_DELAY, System.getProperty(NetworkProfile.IN_DELAY));
+      cfg.put(NetworkProfile.LOSS, System.getProperty(NetworkProfile.LOSS));
+      cfg.put("bench.selfTest", SELF_TEST);
+      cfg.put("bench.metrics", MetricsRegistry.ENABLED);
+      cfg.put("bench.jfr", FlightRecording.ENABLED);
+      cfg.put("bench.engine", ENGINE);
+      if (ASYNC) cfg.put("bench.asyncInFlight", ASYNC_IN_FLIGHT);
+      // anything else explicitly set, e.g. the options of ClusterCoordinator
+      for (String key : new TreeSet<String>(System.getProperties().stringPropertyNames())) {
+         if (key.startsWith("bench.") && !cfg.containsKey(key)) cfg.put(key, System.getProperty(key));
+      }
+      cfg.put("java.vm", System.getProperty("java.vm.name") + " " + System.getProperty("java.runtime.version"));
+      return cfg;
    }
 
    static {
       System.setProperty("jgroups.bind_addr", "127.0.0.1");
       System.setProperty("java.net.preferIPv4Stack", "true");
+      NetworkProfile.apply();
 
-      for (int i = 0; i < NUM_KEYS; i++) {
-         final String root = "KEY-N"+i+"-NODE";
-         for (int node = 0; node < NODES; node++) {
-            KEYS_W_PERNODE[node][i] = root + node;
-         }
-         KEYS_R[i] = "KEY-N1-" + i;
-      }
-      for (int i = NUM_KEYS; i < NUM_KEYS*2; i++) {
-         KEYS_R[i] = "KEY-N2-" + i;
+      for (int node = 0; node < NODES; node++) {
+         final String suffix = "-NODE" + node;
+         KEYS_W_PERNODE[node] = new KeySpace(NUM_KEYS) {
+            protected String generate(int index) {
+               return "KEY-N" + index + suffix;
+            }
+         }.init();
       }
+      KEYS_W_SHARED = new KeySpace(SHARED_KEYS) {
+         protected String generate(int index) {
+            return "KEY-N" + index + "-SHARED";
+         }
+      }.init();
+      KEYS_R = new KeySpace(NUM_READ_KEYS) {
+         protected String generate(int index) {
+            return (index < NUM_KEYS ? "KEY-N1-" : "KEY-N2-") + index;
+         }
+      }.init();
    }
 
-   public static void main(String[] args) throws InterruptedException {
+   public static void main(String[] args) throws Exception {
+      validateEngine();
       //print out current Infinispan version:
       if (!EXTRA_QUIET) {
          org.infinispan.Version.main(args);
          printConfiguration();
       }
-      new Transactional().start();
+      values = VALUE_GENERATOR.pool(VALUE_POOL, new Random(RANDOM_SEED));
+      if (SELF_TEST)
+         new Transactional().selfTest();
+      else if (NODE_INDEX >= 0)
+         new Transactional().startForkedNode();
+      else
+         new Transactional().start();
    }
 
-   public void start() throws InterruptedException {
-      // Using deprecated config API to be compatible with Infinispan 5.1 as well as 5.0
-      GlobalConfiguration gc = new GlobalConfiguration();
-      gc.setTransportClass(JGroupsTransport.class.getName());
-      gc.getTransportProperties().setProperty("configurationFile", JGROUPS_CONF);
-      
-      Configuration cfg = new Configuration();
+   private static void validateEngine() {
+      if (!ENGINE.equals("platform") && !VIRTUAL_THREADS && !ASYNC)
+         throw new IllegalArgumentException("Unknown engine " + ENGINE + ", expected platform, virtual or async");
+      if (ASYNC && USE_TX)
+         throw new IllegalArgumentException("The async engine can't run transactions: async operations don't join the caller's transaction");
+      if (ASYNC && OPEN_LOOP)
+         throw new IllegalArgumentException("The async engine only runs in closed loop, with bench.asyncInFlight operations in flight per worker");
+      if (ASYNC && CONTENTION)
+         throw new IllegalArgumentException("The contention mode needs the platform or virtual engine, to tell committed operations from failed ones");
+   }
 
-      if (USE_TX) {
-         ClusteringConfig mode = cfg.fluent()
-               .locking().lockAcquisitionTimeout(60000L).useLockStriping(false)
-               .concurrencyLevel(NUM_THREADS * 4)
-               .eviction().strategy(EvictionStrategy.NONE)
-               .transaction()
-               .transactionManagerLookup(new DummyTransactionManagerLookup())
-               .syncCommitPhase(false).syncRollbackPhase(false)
-               .clustering();
-         applyClusteringOptions(mode);
-      } else {
-         ClusteringConfig mode =cfg.fluent()
-               .locking().lockAcquisitionTimeout(60000L).useLockStriping(false)
-               .concurrencyLevel(NUM_THREADS * 4)
-               .eviction().strategy(EvictionStrategy.NONE)
-               .clustering().mode(USE_DISTRIBUTION ? CacheMode.DIST_SYNC : CacheMode.REPL_SYNC);
-         applyClusteringOptions(mode);
+   /**
+    * Runs the workers against no-op caches, measuring the throughput ceiling of the load generator itself.
+    */
+   public void selfTest() {
+      Cache[] caches = new Cache[NODES];
+      for (int i=0; i<NODES; i++) {
+         caches[i] = NoOpCache.create();
       }
+      benchmark(caches);
+   }
+
+   public void start() throws Exception {
+      GlobalConfiguration gc = newGlobalConfiguration();
+      Configuration cfg = newConfiguration();
       DefaultCacheManager[] cms = new DefaultCacheManager[NODES];
       for (int i=0; i<NODES; i++) {
          cms[i] = new DefaultCacheManager(gc, cfg);
@@ -133,21 +292,24 @@ public class Transactional {
          Cache[] caches = new Cache[NODES];
          for (int i=0; i<NODES; i++) {
             caches[i] = cms[i].getCache();
+            if (CONTENTION) LockWaitProbe.install(caches[i]);
          }
 
          while (cms[0].getMembers().size() != NODES) Thread.sleep(100);
+         if (MembershipScenario.isEnabled())
+            scenario = new MembershipScenario(cms, gc, cfg);
 
          // populate cache
          for (int node=0; node<NODES; node++) {
-            final Cache cache = caches[node];
-            for (int i = 0; i < NUM_KEYS; i++) {
-               cache.put(KEYS_W_PERNODE[node][i], generateRandomString(PAYLOAD_SIZE));
-            }
+            populate(node, caches[node]);
          }
+         marshallingCost = measureMarshalling(caches[0]);
+         managers.addAll(Arrays.asList(cms));
 
          // Now the benchmark
          benchmark(caches);
       } finally {
+         if (scenario != null) scenario.stop();
          for (int i=0; i<NODES; i++) {
             DefaultCacheManager cacheManager = cms[i];
             if (cacheManager != null)
@@ -156,75 +318,459 @@ public class Transactional {
       }
    }
 
+   /**
+    * Runs a single node of a cluster made of one JVM per node: the node joins the cluster, populates its keys,
+    * then runs the workers assigned to it under the control of the {@link ClusterCoordinator} which forked it.
+    */
+   public void startForkedNode() throws Exception {
+      DefaultCacheManager cm = new DefaultCacheManager(newGlobalConfiguration(), newConfiguration());
+      try {
+         Cache cache = cm.getCache();
+         if (CONTENTION) LockWaitProbe.install(cache);
+         while (cm.getMembers().size() != NODES) Thread.sleep(100);
+         populate(NODE_INDEX, cache);
+         if (NODE_INDEX == 0) marshallingCost = measureMarshalling(cache);
+         managers.add(cm);
+
+         ClusterCoordinator.NodeChannel channel = ClusterCoordinator.NodeChannel.connect(COORDINATOR_PORT, NODE_INDEX);
+         try {
+            channel.awaitStart();
+            Cache[] caches = new Cache[NODES];
+            caches[NODE_INDEX] = cache;
+            startWorkers(caches, NODE_INDEX).countDown();
+            channel.serve(localStats());
+         } finally {
+            quitWorkers.set(true);
+            channel.close();
+         }
+         printRetainedHeap();
+      } finally {
+         cm.stop();
+      }
+   }
+
+   private static void populate(int node, Cache cache) {
+      for (int i = 0; i < NUM_KEYS; i++) {
+         cache.put(KEYS_W_PERNODE[node].key(i), values[i % values.length]);
+      }
+      if (node == 0 && WRITE_OVERLAP_PERCENT > 0) {
+         for (int i = 0; i < SHARED_KEYS; i++) {
+            cache.put(KEYS_W_SHARED.key(i), values[i % values.length]);
+         }
+      }
+   }
+
+   /**
+    * Measures the marshalling of the values with the marshaller of the given cache, before the workers start.
+    */
+   private static double[] measureMarshalling(Cache cache) throws Exception {
+      double[] cost = ValueGenerator.measureMarshalling(cache, values);
+      if (cost != null) printMarshallingCost(cost);
+      return cost;
+   }
+
+   private static void printMarshallingCost(double[] cost) {
+      System.out.printf("  Marshalling: %.0f bytes per value, %.1f us to marshall, %.1f us to unmarshall%n", cost[0], cost[1] / 1000, cost[2] / 1000);
+   }
+
+   private static GlobalConfiguration newGlobalConfiguration() {
+      // Using deprecated config API to be compatible with Infinispan 5.1 as well as 5.0
+      GlobalConfiguration gc = new GlobalConfiguration();
+      gc.setTransportClass(JGroupsTransport.class.getName());
+      gc.getTransportProperties().setProperty("configurationFile", JGROUPS_CONF);
+      if (ASYNC_EXECUTOR_THREADS > 0) {
+         // the async operations of the async engine run in this pool
+         Properties executor = new Properties();
+         executor.setProperty("maxThreads", String.valueOf(ASYNC_EXECUTOR_THREADS));
+         gc.setAsyncTransportExecutorProperties(executor);
+      }
+      return gc;
+   }
+
+   private static Configuration newConfiguration() {
+      Configuration cfg = new Configuration();
+      LockingConfig locking = cfg.fluent()
+            .locking().lockAcquisitionTimeout(LOCK_TIMEOUT).useLockStriping(LOCK_STRIPING)
+            .concurrencyLevel(CONCURRENCY_LEVEL);
+      if (ISOLATION_LEVEL != null) locking.isolationLevel(IsolationLevel.valueOf(ISOLATION_LEVEL));
+
+      if (USE_TX) {
+         ClusteringConfig mode = locking
+               .eviction().strategy(EvictionStrategy.NONE)
+               .transaction()
+               .transactionManagerLookup(newTransactionManagerLookup())
+               .syncCommitPhase(false).syncRollbackPhase(false)
+               .clustering();
+         applyClusteringOptions(mode);
+      } else {
+         ClusteringConfig mode = locking
+               .eviction().strategy(EvictionStrategy.NONE)
+               .clustering().mode(USE_DISTRIBUTION ? CacheMode.DIST_SYNC : CacheMode.REPL_SYNC);
+         applyClusteringOptions(mode);
+      }
+      return cfg;
+   }
+
+   private static TransactionManagerLookup newTransactionManagerLookup() {
+      try {
+         return (TransactionManagerLookup) Class.forName(TM_LOOKUP).newInstance();
+      } catch (Exception e) {
+         throw new IllegalArgumentException("Unable to instantiate transaction manager lookup " + TM_LOOKUP, e);
+      }
+   }
+
    private void benchmark(Cache[] caches) {
+      startWorkers(caches, -1).countDown();
+      monitor(scenario == null ? localStats() : scenario.sample(localStats()));
+      quitWorkers.set(true);
+      printRetainedHeap();
+   }
+
+   private static void printRetainedHeap() {
+      System.out.printf("  Retained heap after the test: %s%n", StartupSpeedTest.format(MemoryProbe.retainedHeap()));
+   }
+
+   /**
+    * Creates the workers, spread over the nodes; the workers wait for the returned latch before starting.
+    * When onlyNode is not negative only the workers of that node are created, but the assignment and the
+    * random streams are the same as with all nodes in one JVM.
+    */
+   private CountDownLatch startWorkers(Cache[] caches, int onlyNode) {
       final CountDownLatch startSignal = new CountDownLatch(1);
-      ExecutorService e = Executors.newFixedThreadPool(NUM_THREADS);
+      ExecutorService e = newWorkerExecutor();
 
+      int workerIndex = 0;
+      int localWorkers = 0;
+      List<Recorders> writerRecorders = new ArrayList<Recorders>();
       for (int i = 0; i < WRITER_THREADS; i++) {
          // Add a writer
-         int nodeIndex = RANDOM.nextInt(NODES);
-         e.submit(new Writer(caches[nodeIndex], startSignal, KEYS_W_PERNODE[nodeIndex]));
+         int nodeIndex = WORKER_NODES[workerIndex];
+         Random random = workerRandom(workerIndex++);
+         if (onlyNode >= 0 && nodeIndex != onlyNode) continue;
+         Writer writer = new Writer(caches[nodeIndex], nodeIndex, startSignal, random, recorders(writerRecorders, localWorkers++, true, nodeIndex),
+               KEYS_W_PERNODE[nodeIndex]);
+         workers.add(writer);
+         e.submit(writer);
       }
+      List<Recorders> readerRecorders = new ArrayList<Recorders>();
+      localWorkers = 0;
       for (int i = 0; i < READER_THREADS; i++) {
          //Add a reader
-         int nodeIndex = RANDOM.nextInt(NODES);
-         e.submit(new Reader(caches[nodeIndex], startSignal));
+         int nodeIndex = WORKER_NODES[workerIndex];
+         Random random = workerRandom(workerIndex++);
+         if (onlyNode >= 0 && nodeIndex != onlyNode) continue;
+         Reader reader = new Reader(caches[nodeIndex], nodeIndex, startSignal, random, recorders(readerRecorders, localWorkers++, false, nodeIndex));
+         workers.add(reader);
+         e.submit(reader);
       }
-
-      startSignal.countDown();
+      recorders.addAll(writerRecorders);
+      recorders.addAll(readerRecorders);
       e.shutdown();
-      System.out.println("STARTING");
+      return startSignal;
+   }
+
+   /**
+    * The node of each worker, drawn from its own stream when the class is loaded: every JVM of a forked cluster
+    * gets the same assignment, whatever it did with the other random streams before starting its workers.
+    */
+   private static int[] assignNodes() {
+      Random random = new Random(RANDOM_SEED);
+      int[] nodes = new int[NUM_THREADS];
+      for (int i = 0; i < nodes.length; i++) {
+         nodes[i] = random.nextInt(NODES);
+      }
+      return nodes;
+   }
+
+   /**
+    * One thread per worker: a platform thread, or a virtual thread with bench.engine=virtual (Java 21 or later,
+    * looked up reflectively as the benchmark has to run on older JVMs too). The async engine also uses a
+    * platform thread per worker, but only to issue operations.
+    */
+   private static ExecutorService newWorkerExecutor() {
+      if (!VIRTUAL_THREADS) return Executors.newFixedThreadPool(NUM_THREADS);
+      try {
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (Exception e) {
+         throw new IllegalStateException("bench.engine=virtual needs Java 21 or later", e);
+      }
+   }
+
+   /**
+    * Each worker has its own latency recorders, except virtual thread workers which share LATENCY_STRIPES of
+    * them per operation type: tens of thousands of histograms wouldn't fit in the heap. The latencies of
+    * shared recorders can't be told apart per node.
+    */
+   private static Recorders recorders(List<Recorders> created, int localIndex, boolean writer, int node) {
+      if (VIRTUAL_THREADS && localIndex >= LATENCY_STRIPES) {
+         Recorders shared = created.get(localIndex % LATENCY_STRIPES);
+         if (shared.node != node) shared.node = -1;
+         return shared;
+      }
+      Recorders r = new Recorders(writer, node);
+      created.add(r);
+      return r;
+   }
 
-      timer.schedule( new ProgressTask(), 10000, 10000 );
+   /**
+    * Prints the progress every 10 seconds until the test is finished.
+    */
+   void monitor(StatsSource statsSource) {
+      System.out.println("STARTING");
+      timer.schedule( new ProgressTask(statsSource), 10000, 10000 );
       try {
          endSignal.await();
       } catch (InterruptedException e1) {
          //main thread quitting, no need to reset interruption
       }
-      quitWorkers.set(true);
    }
 
-   private void printStats(long duration, long reads, long writes) {
+   private StatsSource localStats() {
+      return new StatsSource() {
+         public NodeStats collectStats() {
+            // virtual threads have no allocation counters, and async workers leave the work to other threads
+            final boolean allocation = MemoryProbe.isAllocationSupported() && !VIRTUAL_THREADS && !ASYNC;
+            // collected per node first, for the metrics registry
+            final NodeStats[] nodes = new NodeStats[NODES];
+            for (Worker worker : workers) {
+               NodeStats node = nodeStats(nodes, worker.node, allocation);
+               node.workers++;
+               if (worker.isWriter())
+                  node.writes += worker.ops.get();
+               else
+                  node.reads += worker.ops.get();
+               node.aborted += worker.aborted.get();
+               if (allocation && worker.threadId >= 0)
+                  node.allocatedBytes += Math.max(0, MemoryProbe.allocatedBytes(worker.threadId));
+               if (worker.localGets != null) {
+                  node.localGets += worker.localGets.get();
+                  node.remoteGets += worker.remoteGets.get();
+               }
+            }
+            NodeStats stats = new NodeStats();
+            stats.allocatedBytes = allocation ? 0 : -1;
+            for (Recorders r : recorders) {
+               r.drainTo(r.node < 0 ? stats.latencies : nodeStats(nodes, r.node, allocation).latencies);
+            }
+            for (NodeStats node : nodes) {
+               if (node != null) stats.add(node);
+            }
+            if (CONTENTION) {
+               LockWaitProbe.drainTo(stats.latencies.lockWaits);
+               stats.lockTimeouts = LockWaitProbe.timeouts();
+            }
+            stats.gc.add(MemoryProbe.gcSnapshot());
+            stats.marshallingCost = marshallingCost;
+            if (scenario == null) { //nodes come and go otherwise
+               for (DefaultCacheManager cm : managers) {
+                  stats.bytesSent += MembershipScenario.bytesSent(cm);
+               }
+            }
+            return stats;
+         }
+
+         private FlightRecording recording;
+
+         public void startProfiling(File file) {
+            recording = FlightRecording.start(file);
+         }
+
+         public void stopProfiling() {
+            if (recording != null) recording.stop();
+            recording = null;
+         }
+      };
+   }
+
+   private static NodeStats nodeStats(NodeStats[] nodes, int node, boolean allocation) {
+      if (nodes[node] == null) {
+         nodes[node] = new NodeStats();
+         nodes[node].node = node;
+         nodes[node].allocatedBytes = allocation ? 0 : -1;
+      }
+      return nodes[node];
+   }
+
+   private void printStats(long duration, long reads, long writes, long aborted, long lockTimeouts, Latencies latencies) {
       System.out.printf(Version.VERSION + ": done %s " + (USE_TX ? "transactional " : "") + "operations in %s", NF.format(reads + writes), Util.prettyPrintTime(duration, TimeUnit.NANOSECONDS));
       System.out.printf("  %s reads and %s writes%n", NF.format(reads), NF.format(writes));
       System.out.printf("  Reads / second: %s%n", NF.format((reads * 1000 * 1000 * 1000) / duration ));
       System.out.printf("  Writes/ second: %s%n", NF.format((writes * 1000 * 1000 * 1000) / duration ));
+      if (SELF_TEST)
+         System.out.printf("  Harness ceiling (ops/second): %s%n", NF.format(((reads + writes) * 1000 * 1000 * 1000) / duration ));
+      if (OPEN_LOOP) {
+         long achieved = ((reads + writes) * 1000 * 1000 * 1000) / duration;
+         System.out.printf("  Target ops/second: %s, achieved %s - %s%n", NF.format(TARGET_OPS_PER_SEC), NF.format(achieved),
+               achieved >= TARGET_OPS_PER_SEC * SUSTAINED_TOLERANCE ? "target rate sustained" : "TARGET RATE NOT SUSTAINED");
+      }
+      printLatency("Read", latencies.reads);
+      printLatency("Write", latencies.writes);
+      if (USE_TX) {
+         printLatency("Commit", latencies.commits);
+         printLatency("Rollback", latencies.rollbacks);
+      }
+      printLatency("ReadResp", latencies.readResponses);
+      printLatency("WriteResp", latencies.writeResponses);
+      if (CONTENTION) printContention(duration, reads, writes, aborted, lockTimeouts, latencies);
    }
 
-   public static String generateRandomString(int size) {
+   /**
+    * Goodput and the failure rate are in transactions (operations in non-transactional mode), unlike the
+    * reads and writes per second; "Conflict" and "Disjoint" are the latencies of whole writer transactions
+    * (work and commit) with and without a write on a shared key.
+    */
+   private static void printContention(long duration, long reads, long writes, long aborted, long lockTimeouts, Latencies latencies) {
+      final long committed = (TX_READS == 0 ? 0 : reads / TX_READS) + (TX_WRITES == 0 ? 0 : writes / TX_WRITES);
+      System.out.printf("  Goodput (committed %s/second): %s%n", USE_TX ? "transactions" : "operations", NF.format((committed * 1000 * 1000 * 1000) / duration));
+      System.out.printf("  Failed %s: %s of %s (%.2f%%), lock timeouts: %s%n", USE_TX ? "transactions" : "operations", NF.format(aborted),
+            NF.format(committed + aborted), committed + aborted == 0 ? 0 : aborted * 100.0 / (committed + aborted), NF.format(lockTimeouts));
+      final LatencyHistogram waits = latencies.lockWaits;
+      if (waits.getTotalCount() > 0)
+         System.out.printf("  Lock acquisitions: %s, %.1f ms waited per second%n", NF.format(waits.getTotalCount()),
+               waits.getMean() * waits.getTotalCount() / duration * 1000);
+      printLatency("LockWait", waits);
+      printLatency("Conflict", latencies.conflicting);
+      printLatency("Disjoint", latencies.nonConflicting);
+   }
+
+   private static double meanLatency(Latencies latencies) {
+      final long count = latencies.reads.getTotalCount() + latencies.writes.getTotalCount();
+      return count == 0 ? 0 : (latencies.reads.getMean() * latencies.reads.getTotalCount()
+            + latencies.writes.getMean() * latencies.writes.getTotalCount()) / count;
+   }
+
+   private static void printLatency(String operation, LatencyHistogram h) {
+      if (h.getTotalCount() == 0) return;
+      System.out.printf("  %-9s latency (us): p50 %s  p90 %s  p99 %s  p99.9 %s  max %s%n", operation,
+            micros(h.getValueAtPercentile(50)), micros(h.getValueAtPercentile(90)), micros(h.getValueAtPercentile(99)),
+            micros(h.getValueAtPercentile(99.9)), micros(h.getMaxValue()));
+   }
+
+   private static String micros(long nanos) {
+      return NF.format(nanos / 1000);
+   }
+
+   public static String generateRandomString(int size, Random random) {
       // each char is 2 bytes
       StringBuilder sb = new StringBuilder(size);
-      for (int i = 0; i < size / 2; i++) sb.append((char) (64 + RANDOM.nextInt(26)));
+      for (int i = 0; i < size / 2; i++) sb.append((char) (64 + random.nextInt(26)));
       return sb.toString();
    }
 
+   /**
+    * In open loop mode each worker issues its share of the target rate, on a fixed schedule.
+    *
+    * @return the interval between two intended operation starts of a single worker, or 0 in closed loop mode
+    */
+   static long pacingIntervalNanos(boolean writer) {
+      if (!OPEN_LOOP) return 0;
+      final int threads = writer ? WRITER_THREADS : READER_THREADS;
+      final double rate = TARGET_OPS_PER_SEC * (writer ? WRITE_PERCENT : 100 - WRITE_PERCENT) / 100.0 / threads;
+      return rate <= 0 ? Long.MAX_VALUE : Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+   }
+
+   /**
+    * Each worker gets its own deterministic random stream, derived from bench.randomSeed and the worker index,
+    * so workers never contend on a shared seed and runs stay reproducible across versions.
+    */
+   static Random workerRandom(int workerIndex) {
+      return new Random(RANDOM_SEED ^ (0x9E3779B97F4A7C15L * (workerIndex + 1)));
+   }
+
    private static abstract class Worker implements Callable<Void> {
       final CountDownLatch startSignal;
-      final Cache<String, String> cache;
+      final Cache<String, Object> cache;
       final TransactionManager tm;
+      final boolean useTx;
+      final Random random;
+      final OpCounter ops = new OpCounter();
+      final OpCounter aborted = new OpCounter();
+      final OpCounter localGets; // sampled, with bench.metrics in dist mode only
+      final OpCounter remoteGets;
+      final int node;
+      volatile long threadId = -1;
+      final LatencyRecorder opLatency;
+      final LatencyRecorder responseTime;
+      final LatencyRecorder commitLatency;
+      final LatencyRecorder rollbackLatency;
+      final LatencyRecorder conflictingLatency;
+      final LatencyRecorder nonConflictingLatency;
+      boolean conflicting; // the current transaction wrote a shared key
 
-      private Worker(Cache<String, String> cache, CountDownLatch startSignal) {
+      private Worker(Cache<String, Object> cache, int node, CountDownLatch startSignal, Random random, Recorders recorders) {
          this.startSignal = startSignal;
          this.cache = cache;
+         this.node = node;
+         this.random = random;
+         this.opLatency = recorders.op;
+         this.responseTime = recorders.response;
+         this.commitLatency = recorders.commit;
+         this.rollbackLatency = recorders.rollback;
+         this.conflictingLatency = recorders.conflicting;
+         this.nonConflictingLatency = recorders.nonConflicting;
          this.tm = cache.getAdvancedCache().getTransactionManager();
+         this.useTx = USE_TX && tm != null;
+         final boolean sampleLocality = MetricsRegistry.ENABLED && !isWriter() && cache.getAdvancedCache().getDistributionManager() != null;
+         this.localGets = sampleLocality ? new OpCounter() : null;
+         this.remoteGets = sampleLocality ? new OpCounter() : null;
       }
 
       @Override
       public final Void call() throws Exception {
+         threadId = Thread.currentThread().getId();
          startSignal.await();
+         if (ASYNC) {
+            runAsync();
+            return null;
+         }
+         // In open loop mode the response time is also measured, from the intended start time to the end of the
+         // commit, so that a stalled operation also accounts for the operations which should have been issued
+         // meanwhile (no coordinated omission); it's kept apart from the latency of the work, measured in both modes.
+         final long pacingInterval = pacingIntervalNanos(isWriter());
+         if (pacingInterval == Long.MAX_VALUE) return null;
+         long nextStart = System.nanoTime() + (OPEN_LOOP ? (long) (random.nextDouble() * pacingInterval) : 0);
          try {
             do {
-               if (USE_TX) {
+               final long intendedStart = nextStart;
+               if (OPEN_LOOP) {
+                  nextStart += pacingInterval;
+                  pauseUntil(intendedStart);
+               }
+               if (useTx) {
                   tm.begin();
-                  // Force 2PC
-                  tm.getTransaction().enlistResource(new XAResourceAdapter());
+                  if (FORCE_2PC) {
+                     for (int i = 0; i < XA_RESOURCES; i++) {
+                        tm.getTransaction().enlistResource(new XAResourceAdapter());
+                     }
+                  }
                }
                try {
-                  doWork();
-                  if (USE_TX) tm.commit();
+                  conflicting = false;
+                  final long start = System.nanoTime();
+                  final int done = doWork();
+                  final long workDone = System.nanoTime();
+                  opLatency.record(workDone - start);
+                  if (useTx) {
+                     tm.commit();
+                     commitLatency.record(System.nanoTime() - workDone);
+                  }
+                  if (OPEN_LOOP) responseTime.record(System.nanoTime() - intendedStart);
+                  if (CONTENTION && isWriter())
+                     (conflicting ? conflictingLatency : nonConflictingLatency).record(System.nanoTime() - start);
+                  // only committed operations count
+                  final long total = ops.add(done);
+                  if (trace) log.trace(total + (isWriter() ? " write" : " read") + " operations performed");
                } catch (Exception e) {
+                  if (CONTENTION) {
+                     abort(e);
+                     continue;
+                  }
                   try {
-                     if (USE_TX) tm.rollback();
+                     if (useTx) {
+                        final long start = System.nanoTime();
+                        tm.rollback();
+                        rollbackLatency.record(System.nanoTime() - start);
+                     }
                      log.error(e);
                   }
                   finally {
@@ -244,41 +790,230 @@ public class Transactional {
          return null;
       }
 
-      protected abstract void doWork();
+      /**
+       * In contention mode a failure, typically a lock timeout or a transaction rolled back on commit, is counted
+       * and the transaction rolled back if still active; then the worker goes on.
+       */
+      private void abort(Exception e) {
+         aborted.increment();
+         if (trace) log.trace("Operation failed: " + e);
+         if (!useTx) return;
+         try {
+            if (tm.getTransaction() != null) {
+               final long start = System.nanoTime();
+               tm.rollback();
+               rollbackLatency.record(System.nanoTime() - start);
+            }
+         } catch (Exception rollbackFailure) {
+            log.error(rollbackFailure);
+         }
+      }
+
+      /**
+       * Keeps ASYNC_IN_FLIGHT operations outstanding, issuing a new one as soon as one completes: each worker
+       * then stands for that many clients, without a thread for each.
+       */
+      private void runAsync() {
+         final Semaphore inFlight = new Semaphore(ASYNC_IN_FLIGHT);
+         try {
+            while (!quitWorkers.get()) {
+               inFlight.acquire();
+               final long start = System.nanoTime();
+               onCompletion(doWorkAsync(), start, inFlight);
+            }
+         } catch (Exception e) {
+            log.error(e);
+         } finally {
+            quitWorkers.set(true);
+         }
+      }
+
+      private <T> void onCompletion(NotifyingFuture<T> future, final long start, final Semaphore inFlight) {
+         future.attachListener(new FutureListener<T>() {
+            public void futureDone(Future<T> done) {
+               try {
+                  done.get();
+                  opLatency.record(System.nanoTime() - start);
+                  synchronized (ops) { // completions of the same worker run on several threads
+                     ops.add(asyncOperations());
+                  }
+               } catch (Exception e) {
+                  log.error(e);
+                  if (quitWorkers.compareAndSet(false, true)) System.out.println("Error - terminating");
+               } finally {
+                  inFlight.release();
+               }
+            }
+         });
+      }
+
+      /**
+       * @return the number of operations done
+       */
+      protected abstract int doWork();
+
+      /**
+       * Starts the asynchronous counterpart of {@link #doWork()}; only ever called by the worker's own thread.
+       */
+      protected abstract NotifyingFuture<?> doWorkAsync();
+
+      /**
+       * @return the number of operations done by a single {@link #doWorkAsync()}
+       */
+      protected int asyncOperations() {
+         return 1;
+      }
+
+      protected abstract boolean isWriter();
+
+      private static void pauseUntil(long nanoTime) {
+         long remaining;
+         while ((remaining = nanoTime - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+         }
+      }
+
+   }
+
+   /**
+    * The latency recorders of a worker, or of a stripe of virtual thread workers.
+    */
+   private static final class Recorders {
+      final LatencyRecorder op = new LatencyRecorder();
+      final LatencyRecorder response = new LatencyRecorder();
+      final LatencyRecorder commit = new LatencyRecorder();
+      final LatencyRecorder rollback = new LatencyRecorder();
+      final LatencyRecorder conflicting = new LatencyRecorder();
+      final LatencyRecorder nonConflicting = new LatencyRecorder();
+      final boolean writer;
+      int node; // -1 when shared by the workers of several nodes
+
+      Recorders(boolean writer, int node) {
+         this.writer = writer;
+         this.node = node;
+      }
+
+      void drainTo(Latencies target) {
+         op.drainTo(writer ? target.writes : target.reads);
+         response.drainTo(writer ? target.writeResponses : target.readResponses);
+         commit.drainTo(target.commits);
+         rollback.drainTo(target.rollbacks);
+         conflicting.drainTo(target.conflicting);
+         nonConflicting.drainTo(target.nonConflicting);
+      }
    }
 
    private static final class Writer extends Worker {
-      private final String payload = generateRandomString(PAYLOAD_SIZE);
-      private final String[] keys;
-      private Writer(Cache<String, String> cache, CountDownLatch startSignal, String[] keys) {
-         super(cache, startSignal);
+      private int nextValue;
+      private final KeySpace keys;
+      private final KeySelector keySelector;
+      private final KeySelector sharedKeySelector;
+      private Writer(Cache<String, Object> cache, int node, CountDownLatch startSignal, Random random, Recorders recorders, KeySpace keys) {
+         super(cache, node, startSignal, random, recorders);
          this.keys = keys;
+         this.nextValue = random.nextInt(values.length);
+         this.keySelector = KeySelector.create(keys.size(), random);
+         this.sharedKeySelector = KeySelector.create(KEYS_W_SHARED.size(), random);
+      }
+
+      private String nextKey() {
+         if (WRITE_OVERLAP_PERCENT > 0 && random.nextInt(100) < WRITE_OVERLAP_PERCENT) {
+            conflicting = true;
+            return KEYS_W_SHARED.key(sharedKeySelector.nextIndex(random));
+         }
+         return keys.key(keySelector.nextIndex(random));
+      }
+
+      private Object nextValue() {
+         if (++nextValue == values.length) nextValue = 0;
+         return values[nextValue];
       }
 
-      protected final void doWork() {
-         cache.put(keys[RANDOM.nextInt(keys.length)], payload);
-         long writes = numWrites.incrementAndGet();
-         if (trace) {
-            log.trace(writes + " write operations performed");
+      protected final int doWork() {
+         if (PUT_ALL && TX_WRITES > 1) {
+            Map<String, Object> batch = new HashMap<String, Object>(TX_WRITES * 2);
+            for (int i = 0; i < TX_WRITES; i++) {
+               String key = nextKey();
+               if (READ_MODIFY_WRITE) cache.get(key);
+               batch.put(key, nextValue());
+            }
+            cache.putAll(batch);
+         } else {
+            for (int i = 0; i < TX_WRITES; i++) {
+               String key = nextKey();
+               if (READ_MODIFY_WRITE) cache.get(key);
+               cache.put(key, nextValue());
+            }
          }
+         return TX_WRITES;
+      }
+
+      protected final NotifyingFuture<?> doWorkAsync() {
+         if (PUT_ALL && TX_WRITES > 1) {
+            Map<String, Object> batch = new HashMap<String, Object>(TX_WRITES * 2);
+            for (int i = 0; i < TX_WRITES; i++) {
+               batch.put(nextKey(), nextValue());
+            }
+            return cache.putAllAsync(batch);
+         }
+         return cache.putAsync(nextKey(), nextValue());
+      }
+
+      protected int asyncOperations() {
+         return PUT_ALL && TX_WRITES > 1 ? TX_WRITES : 1;
+      }
+
+      protected boolean isWriter() {
+         return true;
       }
    }
 
    private static final class Reader extends Worker {
 
-      private Reader(Cache<String, String> cache, CountDownLatch startSignal) {
-         super(cache, startSignal);
+      private final KeySelector keySelector;
+      private final DistributionManager distributionManager; // only set when sampling the locality of the gets
+      private int gets;
+
+      private Reader(Cache<String, Object> cache, int node, CountDownLatch startSignal, Random random, Recorders recorders) {
+         super(cache, node, startSignal, random, recorders);
+         this.keySelector = KeySelector.create(KEYS_R.size(), random);
+         this.distributionManager = localGets == null ? null : cache.getAdvancedCache().getDistributionManager();
+      }
+
+      private String nextKey() {
+         final String key = KEYS_R.key(keySelector.nextIndex(random));
+         if (distributionManager != null && (++gets & LOCALITY_SAMPLING_MASK) == 0)
+            (distributionManager.isLocal(key) ? localGets : remoteGets).increment();
+         return key;
       }
 
-      protected final void doWork() {
-         cache.get(KEYS_R[RANDOM.nextInt(KEYS_R.length)]);
-         long reads = numReads.incrementAndGet();
-         if (trace) {
-            log.trace(reads + " read operations performed");
+      protected final int doWork() {
+         for (int i = 0; i < TX_READS; i++) {
+            cache.get(nextKey());
          }
+         return TX_READS;
+      }
+
+      protected final NotifyingFuture<?> doWorkAsync() {
+         return cache.getAsync(nextKey());
+      }
+
+      protected boolean isWriter() {
+         return false;
       }
    }
 
+   /**
+    * Bytes sent by the JGroups transports of all the nodes, per operation and per write: in REPL and DIST the
+    * writes account for most of them, reads only go remote in DIST.
+    */
+   private static void printTransport(long bytesSent, long reads, long writes, double[] marshallingCost) {
+      if (bytesSent <= 0 || reads + writes == 0) return;
+      System.out.printf("  Sent by the nodes: %s, %s bytes per operation%s%n", StartupSpeedTest.format(bytesSent), NF.format(bytesSent / (reads + writes)),
+            writes == 0 ? "" : ", " + NF.format(bytesSent / writes) + " per write");
+      if (marshallingCost != null) printMarshallingCost(marshallingCost);
+   }
+
    private static void applyClusteringOptions(ClusteringConfig mode) {
       mode.mode(USE_DISTRIBUTION ? CacheMode.DIST_SYNC : CacheMode.REPL_SYNC);
       if (! L1_ENABLED && USE_DISTRIBUTION)
@@ -287,45 +1022,151 @@ public class Transactional {
          mode.hash().numVirtualNodes(NUM_VNODES);
       }
       mode.sync().replTimeout(60000L)
-         .stateRetrieval().fetchInMemoryState(false);
+         .stateRetrieval().fetchInMemoryState(FETCH_IN_MEMORY_STATE);
    }
 
    private class ProgressTask extends TimerTask {
 
+      private final StatsSource statsSource;
       private boolean warmup = true;
       private long startTime = System.nanoTime(); // starts with an approximation - it's warmup anyway
       private int loop = 0;
       private long lastSeenReads = 0;
       private long lastSeenWrites = 0;
+      private long baseReads = 0;
+      private long baseWrites = 0;
+      private long baseAborted = 0;
+      private long baseLockTimeouts = 0;
+      private long baseBytesSent = 0;
+      private final Latencies cumulative = new Latencies();
+      private final ResultsWriter results = ResultsWriter.create(Version.VERSION, "transactional-" + NODES + "nodes", configuration());
+      private final MetricsRegistry metrics = MetricsRegistry.create("transactional-" + NODES + "nodes");
+      private long lastTickTime = startTime;
+      private long lastTickReads = 0;
+      private long lastTickWrites = 0;
+      private long baseAllocatedBytes = 0;
+      private MemoryProbe.GcSnapshot baseGc = new MemoryProbe.GcSnapshot();
+      private final SteadyState steadyState = new SteadyState();
+      private long warmupNanos;
+      private String warmupEnd;
+
+      ProgressTask(StatsSource statsSource) {
+         this.statsSource = statsSource;
+      }
+
+      /**
+       * The recording goes next to the results file, under the same name.
+       */
+      private void startProfiling() {
+         final File file = results != null ? results.siblingFile(".jfr")
+               : new File("transactional-" + NODES + "nodes-" + Version.VERSION + ".jfr");
+         try {
+            statsSource.startProfiling(file);
+         } catch (Exception e) {
+            System.out.println("Unable to start profiling: " + e);
+         }
+      }
+
+      private void stopProfiling() {
+         try {
+            statsSource.stopProfiling();
+         } catch (Exception e) {
+            System.out.println("Unable to stop profiling: " + e);
+         }
+      }
 
       public void run() {
          loop++;
-         final long duration = System.nanoTime() - startTime;
-         final long reads = numReads.get();
-         final long writes = numWrites.get();
-         if ( (lastSeenReads!=0 && lastSeenReads==reads) || (lastSeenWrites!=0 && lastSeenWrites==writes) ) {
+         final long now = System.nanoTime();
+         final long duration = now - startTime;
+         final NodeStats stats;
+         try {
+            stats = statsSource.collectStats();
+         } catch (Exception e) {
+            System.out.println("Unable to collect statistics (" + e + ") - aborting");
+            endSignal.countDown();
+            cancel();
+            return;
+         }
+         final long totalReads = stats.reads;
+         final long totalWrites = stats.writes;
+         final Latencies interval = stats.latencies;
+         cumulative.add(interval);
+         final long reads = totalReads - baseReads;
+         final long writes = totalWrites - baseWrites;
+         if ( (lastSeenReads!=0 && lastSeenReads==totalReads) || (lastSeenWrites!=0 && lastSeenWrites==totalWrites) ) {
             System.out.println("No progress made! aborting");
             endSignal.countDown();
          }
          else {
-            lastSeenReads = reads;
-            lastSeenWrites = writes;
+            lastSeenReads = totalReads;
+            lastSeenWrites = totalWrites;
          }
          if (!EXTRA_QUIET)
-            printStats(duration, reads, writes);
-         if (warmup && (loop / 6) >= WARMUP_MINUTES) {
+            printStats(duration, reads, writes, stats.aborted - baseAborted, stats.lockTimeouts - baseLockTimeouts, interval);
+         if (results != null) {
+            results.tick(warmup ? ResultsWriter.PHASE_WARMUP : ResultsWriter.PHASE_MEASURE, duration, now - lastTickTime,
+                  totalReads - lastTickReads, totalWrites - lastTickWrites, interval);
+         }
+         if (metrics != null)
+            metrics.update(warmup ? ResultsWriter.PHASE_WARMUP : ResultsWriter.PHASE_MEASURE, duration, now - lastTickTime, stats);
+         final double tickThroughput = now == lastTickTime ? 0 : (totalReads - lastTickReads + totalWrites - lastTickWrites) * 1e9 / (now - lastTickTime);
+         lastTickTime = now;
+         lastTickReads = totalReads;
+         lastTickWrites = totalWrites;
+         final boolean steady = warmup && steadyState.warmupTick(tickThroughput, meanLatency(interval));
+         final boolean precise = !warmup && steadyState.measureTick(tickThroughput) && scenario == null;
+         if (warmup && (steady || (loop / 6) >= WARMUP_MINUTES)) {
             System.out.println("WARMUP FINISHED - RESETTING STATS");
+            warmupNanos = duration;
+            warmupEnd = steady ? "steady state, " + steadyState.describeWindow()
+                  : SteadyState.ADAPTIVE_WARMUP ? "NO STEADY STATE within bench.warmupMinutes, " + steadyState.describeWindow() : "bench.warmupMinutes";
+            System.out.printf("  Warmup took %s (%s)%n", Util.prettyPrintTime(warmupNanos, TimeUnit.NANOSECONDS), warmupEnd);
+            if (results != null) {
+               results.comment("warmup_s", TimeUnit.NANOSECONDS.toSeconds(warmupNanos));
+               results.comment("warmup_end", steady ? "steady" : "limit");
+            }
+            if (scenario != null) scenario.start();
+            if (FlightRecording.ENABLED) startProfiling();
             startTime = System.nanoTime();
-            numReads.set(0);
-            numWrites.set(0);
+            baseReads = totalReads;
+            baseWrites = totalWrites;
+            baseAborted = stats.aborted;
+            baseLockTimeouts = stats.lockTimeouts;
+            baseBytesSent = stats.bytesSent;
+            baseAllocatedBytes = stats.allocatedBytes;
+            baseGc = stats.gc;
+            cumulative.reset();
             warmup = false;
             loop=0;
          }
-         else if (!warmup && (loop / 6) >= TESTTIME_MINUTES) {
+         else if (!warmup && (precise || (loop / 6) >= TESTTIME_MINUTES)) {
             System.out.println("TEST FINISHED");
+            if (FlightRecording.ENABLED) stopProfiling();
             endSignal.countDown();
             printConfiguration();
-            printStats(duration, reads, writes);
+            printStats(duration, reads, writes, stats.aborted - baseAborted, stats.lockTimeouts - baseLockTimeouts, cumulative);
+            System.out.printf("  Warmup took %s (%s)%n", Util.prettyPrintTime(warmupNanos, TimeUnit.NANOSECONDS), warmupEnd);
+            System.out.printf("  Measured for %s (%s), throughput 95%% CI +/- %.1f%%%n", Util.prettyPrintTime(duration, TimeUnit.NANOSECONDS),
+                  precise ? "target precision reached" : "bench.durationMinutes", steadyState.ciPercent());
+            if (stats.allocatedBytes >= 0 && reads + writes > 0)
+               System.out.printf("  Allocated by the workers: %s, %s bytes per operation%n", StartupSpeedTest.format(stats.allocatedBytes - baseAllocatedBytes),
+                     NF.format((stats.allocatedBytes - baseAllocatedBytes) / (reads + writes)));
+            stats.gc.printSince(baseGc, duration);
+            printTransport(stats.bytesSent - baseBytesSent, reads, writes, stats.marshallingCost);
+            if (scenario != null) scenario.report();
+            if (results != null) {
+               if (stats.bytesSent > 0 && reads + writes > 0)
+                  results.comment("bytes_sent_per_op", (stats.bytesSent - baseBytesSent) / (reads + writes));
+               if (stats.marshallingCost != null) {
+                  results.comment("marshalled_bytes_per_value", Math.round(stats.marshallingCost[0]));
+                  results.comment("marshall_ns_per_value", Math.round(stats.marshallingCost[1]));
+                  results.comment("unmarshall_ns_per_value", Math.round(stats.marshallingCost[2]));
+               }
+               results.close();
+            }
+            if (metrics != null) metrics.close();
+            cancel();
          }
       }
 
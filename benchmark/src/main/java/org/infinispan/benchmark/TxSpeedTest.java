@@ -12,28 +12,56 @@ import org.infinispan.util.concurrent.IsolationLevel;
 
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * // TODO: Document this
+ * Transactional commit throughput on a 2 node REPL_SYNC cluster, as the number of committing threads grows:
+ * for each thread count of bench.txThreads (default 1, 2, 4... up to twice the cores) the threads commit
+ * transactions over disjoint keys for bench.txStepSeconds, and the commits/second and the latency percentiles
+ * of whole transactions and of commit() alone are reported, along with the bytes sent per transaction. Payloads
+ * are generated before the timed section, see ValueGenerator for their type and sizes.
+ * <p>
+ * bench.syncCommitPhase and bench.syncRollbackPhase override the Infinispan defaults.
  *
  * @author Manik Surtani
  * @since 5.1
  */
 public class TxSpeedTest {
-   private static final int LOOP_SIZE=1000;
+   private static final int LOOP_SIZE=100;
    final static int payloadSize = 10240; // 10k
+   private static final int TX_WRITES = positive("bench.txWrites", 1); //puts per transaction
+   private static final boolean PUT_ALL = Boolean.getBoolean("bench.putAll");
+   private static final boolean READ_MODIFY_WRITE = Boolean.getBoolean("bench.readModifyWrite");
+   private static final boolean FORCE_2PC = Boolean.parseBoolean(System.getProperty("bench.force2PC", "true"));
+   private static final int XA_RESOURCES = Integer.getInteger("bench.xaResources", 1);
+   private static final int STEP_SECONDS = Integer.getInteger("bench.txStepSeconds", 30);
+   private static final int PAYLOADS = Integer.getInteger("bench.txPayloads", 64); //distinct pre-generated values
+   private static final String SYNC_COMMIT_PHASE = System.getProperty("bench.syncCommitPhase");
+   private static final String SYNC_ROLLBACK_PHASE = System.getProperty("bench.syncRollbackPhase");
    private static final List<String> keys;
+   private static final ValueGenerator VALUE_GENERATOR = new ValueGenerator(payloadSize);
+   private static final Object[] payloads;
    private static final Random r = new Random();
    static {
       keys = new ArrayList<String>(1000);
       for (int i=0; i<1000; i++) keys.add("KEY-" + i);
+      payloads = VALUE_GENERATOR.pool(PAYLOADS, r);
    }
 
 
-   public static void main(String[] args) {
+   private static int positive(String property, int defaultValue) {
+      final int value = Integer.getInteger(property, defaultValue);
+      if (value < 1) throw new IllegalArgumentException(property + " must be at least 1, was " + value);
+      return value;
+   }
+
+   public static void main(String[] args) throws Exception {
       System.setProperty("log4j.configuration", "file:///Users/manik/etc/log4j.xml");
       System.setProperty("jgroups.bind_addr", "127.0.0.1");
       System.setProperty("java.net.preferIPv4Stack", "true");
@@ -43,56 +71,200 @@ public class TxSpeedTest {
       c.setIsolationLevel(IsolationLevel.REPEATABLE_READ);
       c.setTransactionManagerLookupClass(JBossStandaloneJTAManagerLookup.class.getName());
       c.setTransactionManagerLookupClass(DummyTransactionManagerLookup.class.getName());
+      if (SYNC_COMMIT_PHASE != null) c.setSyncCommitPhase(Boolean.parseBoolean(SYNC_COMMIT_PHASE));
+      if (SYNC_ROLLBACK_PHASE != null) c.setSyncRollbackPhase(Boolean.parseBoolean(SYNC_ROLLBACK_PHASE));
       GlobalConfiguration gc = GlobalConfiguration.getClusteredDefault();
       EmbeddedCacheManager ecm1 = new DefaultCacheManager(gc, c);
       EmbeddedCacheManager ecm2 = new DefaultCacheManager(gc.clone(), c.clone());
       System.out.printf("Using Infinispan %s %n", ecm1.getCache().getVersion());
+      System.out.printf("%s puts per transaction%s%s, forcing 2PC: %s (%s extra XA resources)%n", TX_WRITES, PUT_ALL ? " (putAll)" : "",
+            READ_MODIFY_WRITE ? " (read-modify-write)" : "", FORCE_2PC, FORCE_2PC ? XA_RESOURCES : 0);
+      System.out.printf("Sync commit phase: %s, sync rollback phase: %s%n", c.isSyncCommitPhase(), c.isSyncRollbackPhase());
+      System.out.printf("Values: %s (%s distinct)%n", VALUE_GENERATOR.describe(), PAYLOADS);
 
       ecm1.getCache();
       ecm2.getCache();
       AdvancedCache<Object, Object> cache = ecm1.getCache().getAdvancedCache();
+      double[] marshalling = ValueGenerator.measureMarshalling(cache, payloads);
+      if (marshalling != null)
+         System.out.printf("Marshalling: %.0f bytes per value, %.1f us to marshall, %.1f us to unmarshall%n", marshalling[0], marshalling[1] / 1000,
+               marshalling[2] / 1000);
       // Warmup loop.
       System.out.println("Warming up JIT");
-      for (int i=0; i<100; i++) {
-         for (String key: keys) {
-            try {
-               cache.getTransactionManager().begin();
-               cache.getTransactionManager().getTransaction().enlistResource(new XAResourceAdapter());
-               cache.put(key, Transactional.generateRandomString(payloadSize));
-               cache.getTransactionManager().commit();
-            } catch (Exception e) {
-               e.printStackTrace();
-            }
-         }
+      TxLatencies ignored = new TxLatencies();
+      for (int i=0; i<LOOP_SIZE; i++) {
+         runTransactions(cache, keys, i, ignored);
       }
 
-      System.out.println("Resetting cache");
-      cache.clear();
       System.out.println("Starting microbenchmark");
-      long l = System.nanoTime();
-      for (int i=0; i<LOOP_SIZE; i++) {
-         for (String key: keys) {
-            try {
-               cache.getTransactionManager().begin();
-               cache.getTransactionManager().getTransaction().enlistResource(new XAResourceAdapter());
-               cache.put(key, Transactional.generateRandomString(payloadSize));
-               cache.getTransactionManager().commit();
-            } catch (Exception e) {
-               e.printStackTrace();
+      double singleThreaded = 0;
+      for (int threads : threadCounts()) {
+         System.out.println("Resetting cache");
+         cache.clear();
+         double commitsPerSecond = step(cache, threads, ecm1, ecm2);
+         if (singleThreaded == 0) singleThreaded = commitsPerSecond / threads;
+         System.out.printf("   Scaling efficiency: %.0f%% of %s times the first step%n", commitsPerSecond * 100 / (singleThreaded * threads), threads);
+      }
+      System.out.printf("   Retained heap after the test: %s.%n", format(MemoryProbe.retainedHeap()));
+      ecm2.stop();
+      ecm1.stop();
+   }
+
+   private static List<Integer> threadCounts() {
+      List<Integer> counts = new ArrayList<Integer>();
+      String list = System.getProperty("bench.txThreads");
+      if (list != null) {
+         for (String s : list.split(",")) counts.add(Integer.parseInt(s.trim()));
+         return counts;
+      }
+      final int max = Runtime.getRuntime().availableProcessors() * 2;
+      for (int threads = 1; threads < max; threads *= 2) counts.add(threads);
+      counts.add(max);
+      return counts;
+   }
+
+   /**
+    * Runs the given number of threads for STEP_SECONDS, each committing transactions over its own keys.
+    *
+    * @return the commits per second
+    */
+   private static double step(final AdvancedCache<Object, Object> cache, final int threads, EmbeddedCacheManager... nodes) throws InterruptedException {
+      final AtomicBoolean stop = new AtomicBoolean(false);
+      final CountDownLatch startSignal = new CountDownLatch(1);
+      final TxLatencies[] latencies = new TxLatencies[threads];
+      final int[] transactions = new int[threads];
+      final long[] allocated = new long[threads];
+      List<Thread> workers = new ArrayList<Thread>(threads);
+      for (int t = 0; t < threads; t++) {
+         final int index = t;
+         final List<String> ownKeys = new ArrayList<String>();
+         for (int i = t; i < keys.size(); i += threads) ownKeys.add(keys.get(i));
+         latencies[t] = new TxLatencies();
+         Thread worker = new Thread("TxSpeedTest-" + t) {
+            public void run() {
+               try {
+                  startSignal.await();
+               } catch (InterruptedException e) {
+                  return;
+               }
+               long allocatedBefore = MemoryProbe.allocatedBytes();
+               int round = 0;
+               while (!stop.get()) {
+                  transactions[index] += runTransactions(cache, ownKeys, round++, latencies[index]);
+               }
+               allocated[index] = allocatedBefore < 0 ? -1 : MemoryProbe.allocatedBytes() - allocatedBefore;
             }
-         }
+         };
+         workers.add(worker);
+         worker.start();
+      }
+
+      MemoryProbe.GcSnapshot gcBefore = MemoryProbe.gcSnapshot();
+      final long bytesBefore = bytesSent(nodes);
+      long l = System.nanoTime();
+      startSignal.countDown();
+      Thread.sleep(TimeUnit.SECONDS.toMillis(STEP_SECONDS));
+      stop.set(true);
+      for (Thread worker : workers) {
+         worker.join();
       }
       long nanos = System.nanoTime() - l;
+      MemoryProbe.GcSnapshot gcAfter = MemoryProbe.gcSnapshot();
+      final long bytesSent = bytesSent(nodes) - bytesBefore;
+
+      int total = 0;
+      long totalAllocated = 0;
+      TxLatencies merged = new TxLatencies();
+      for (int t = 0; t < threads; t++) {
+         total += transactions[t];
+         totalAllocated = totalAllocated < 0 || allocated[t] < 0 ? -1 : totalAllocated + allocated[t];
+         merged.transactions.add(latencies[t].transactions);
+         merged.commits.add(latencies[t].commits);
+         merged.failures += latencies[t].failures;
+      }
+      final double commitsPerSecond = total * 1e9 / nanos;
+      System.out.printf("%s threads: %s transactions in %s, %.1f commits/second.%n", threads, total, Util.prettyPrintTime(nanos, TimeUnit.NANOSECONDS), commitsPerSecond);
+      if (merged.failures > 0)
+         System.out.printf("   %s transactions failed and were rolled back, not counted above.%n", merged.failures);
+      printLatency("Transaction", merged.transactions);
+      printLatency("Commit", merged.commits);
+      if (totalAllocated >= 0 && total > 0)
+         System.out.printf("   Allocated %s by the benchmark threads, %s bytes per transaction.%n", format(totalAllocated), totalAllocated / total);
+      if (bytesSent > 0 && total > 0)
+         System.out.printf("   Sent %s by the nodes, %s bytes per transaction.%n", format(bytesSent), bytesSent / total);
+      gcAfter.printSince(gcBefore, nanos);
+      return commitsPerSecond;
+   }
+
+   private static long bytesSent(EmbeddedCacheManager... nodes) {
+      long bytes = 0;
+      for (EmbeddedCacheManager node : nodes) {
+         bytes += MembershipScenario.bytesSent(node);
+      }
+      return bytes;
+   }
 
-      System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc();
-      System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc();
-      System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc();
-      System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc();
-      System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc();
+   private static void printLatency(String what, LatencyHistogram h) {
+      if (h.getTotalCount() == 0) return;
+      System.out.printf("   %-11s latency (us): p50 %s  p90 %s  p99 %s  p99.9 %s  max %s%n", what, h.getValueAtPercentile(50) / 1000,
+            h.getValueAtPercentile(90) / 1000, h.getValueAtPercentile(99) / 1000, h.getValueAtPercentile(99.9) / 1000, h.getMaxValue() / 1000);
+   }
 
-      long mem0 = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+   /**
+    * Writes all the given keys once, TX_WRITES keys per transaction. A failed transaction is rolled back,
+    * so it doesn't stay bound to the thread, and counted as a failure.
+    *
+    * @return the number of committed transactions
+    */
+   private static int runTransactions(AdvancedCache<Object, Object> cache, List<String> txKeySpace, int round, TxLatencies latencies) {
+      int transactions = 0;
+      for (int from = 0; from < txKeySpace.size(); from += TX_WRITES) {
+         List<String> txKeys = txKeySpace.subList(from, Math.min(from + TX_WRITES, txKeySpace.size()));
+         final long start = System.nanoTime();
+         try {
+            cache.getTransactionManager().begin();
+            if (FORCE_2PC) {
+               for (int i = 0; i < XA_RESOURCES; i++) {
+                  cache.getTransactionManager().getTransaction().enlistResource(new XAResourceAdapter());
+               }
+            }
+            Map<Object, Object> batch = PUT_ALL ? new HashMap<Object, Object>(txKeys.size() * 2) : null;
+            for (int k = 0; k < txKeys.size(); k++) {
+               String key = txKeys.get(k);
+               Object payload = payloads[(round + from + k) % payloads.length];
+               if (READ_MODIFY_WRITE) cache.get(key);
+               if (PUT_ALL)
+                  batch.put(key, payload);
+               else
+                  cache.put(key, payload);
+            }
+            if (PUT_ALL) cache.putAll(batch);
+            final long commitStart = System.nanoTime();
+            cache.getTransactionManager().commit();
+            final long end = System.nanoTime();
+            latencies.commits.recordValue(end - commitStart);
+            latencies.transactions.recordValue(end - start);
+            transactions++;
+         } catch (Exception e) {
+            latencies.failures++;
+            e.printStackTrace();
+            try {
+               if (cache.getTransactionManager().getTransaction() != null) cache.getTransactionManager().rollback();
+            } catch (Exception rollbackFailure) {
+               rollbackFailure.printStackTrace();
+            }
+         }
+      }
+      return transactions;
+   }
 
-      System.out.printf("   Did %s PUTs in %s and consumed %s of memory.%n%n", LOOP_SIZE * keys.size(), Util.prettyPrintTime(nanos, TimeUnit.NANOSECONDS), format(mem0));
+   /**
+    * Latencies and failed transactions of one thread; merged once the threads are done.
+    */
+   private static final class TxLatencies {
+      long failures;
+      final LatencyHistogram transactions = new LatencyHistogram();
+      final LatencyHistogram commits = new LatencyHistogram();
    }
 
    private static final String format(long bytes) {
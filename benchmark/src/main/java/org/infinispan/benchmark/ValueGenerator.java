@@ -0,0 +1,210 @@
+package org.infinispan.benchmark;
+
+import org.infinispan.Cache;
+import org.infinispan.factories.ComponentRegistry;
+import org.infinispan.marshall.Externalizer;
+import org.infinispan.marshall.SerializeWith;
+import org.infinispan.marshall.StreamingMarshaller;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates the values written by the benchmarks, all of them up front into a pool, so that the timed section
+ * only picks them. The type of the values is chosen with bench.valueType:
+ * <ul>
+ *    <li>string (default): random Strings, of half as many chars as the value size</li>
+ *    <li>bytes: random byte[]</li>
+ *    <li>pojo: a Serializable order object with one line object per 40 bytes of value size, marshalled with
+ *        Java serialization</li>
+ *    <li>externalizer: the same order object, marshalled by its own {@link Externalizer} (@SerializeWith)</li>
+ * </ul>
+ * The size of each value is drawn from bench.valueSizeDistribution:
+ * <ul>
+ *    <li>fixed (default): the size given by the benchmark, e.g. bench.payloadsize</li>
+ *    <li>uniform: between bench.valueSizeMin (default a tenth of the given size) and bench.valueSizeMax
+ *        (default the given size)</li>
+ *    <li>bimodal: bench.valueSizeMin, or bench.valueSizeMax for bench.bimodalLargePercent % of the values
+ *        (default 10)</li>
+ * </ul>
+ */
+final class ValueGenerator {
+
+   private static final String TYPE = System.getProperty("bench.valueType", "string");
+   private static final String SIZE_DISTRIBUTION = System.getProperty("bench.valueSizeDistribution", "fixed");
+   private static final int BIMODAL_LARGE_PERCENT = Integer.getInteger("bench.bimodalLargePercent", 10);
+
+   private static final int LINE_BYTES = 40; // serialized size of an order line, roughly
+   private static final long MARSHALLING_WARMUP_NANOS = TimeUnit.SECONDS.toNanos(1);
+   private static final long MARSHALLING_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+   private final int size;
+   private final int minSize;
+   private final int maxSize;
+
+   /**
+    * @param size the value size of the benchmark, in bytes
+    */
+   ValueGenerator(int size) {
+      this.size = size;
+      this.minSize = Integer.getInteger("bench.valueSizeMin", size / 10);
+      this.maxSize = Integer.getInteger("bench.valueSizeMax", size);
+      if (!TYPE.equals("string") && !TYPE.equals("bytes") && !TYPE.equals("pojo") && !TYPE.equals("externalizer"))
+         throw new IllegalArgumentException("Unknown value type " + TYPE + ", expected string, bytes, pojo or externalizer");
+      if (!SIZE_DISTRIBUTION.equals("fixed") && !SIZE_DISTRIBUTION.equals("uniform") && !SIZE_DISTRIBUTION.equals("bimodal"))
+         throw new IllegalArgumentException("Unknown value size distribution " + SIZE_DISTRIBUTION + ", expected fixed, uniform or bimodal");
+      if (!SIZE_DISTRIBUTION.equals("fixed") && minSize > maxSize)
+         throw new IllegalArgumentException("bench.valueSizeMin is larger than bench.valueSizeMax");
+   }
+
+   String describe() {
+      if (SIZE_DISTRIBUTION.equals("uniform")) return TYPE + ", " + minSize + " to " + maxSize + " bytes";
+      if (SIZE_DISTRIBUTION.equals("bimodal"))
+         return TYPE + ", " + minSize + " or " + maxSize + " bytes (" + BIMODAL_LARGE_PERCENT + "% large)";
+      return TYPE + ", " + size + " bytes";
+   }
+
+   /**
+    * @return count new values
+    */
+   Object[] pool(int count, Random random) {
+      Object[] values = new Object[count];
+      for (int i = 0; i < count; i++) {
+         values[i] = generate(nextSize(random), random);
+      }
+      return values;
+   }
+
+   private int nextSize(Random random) {
+      if (SIZE_DISTRIBUTION.equals("uniform")) return minSize + random.nextInt(maxSize - minSize + 1);
+      if (SIZE_DISTRIBUTION.equals("bimodal")) return random.nextInt(100) < BIMODAL_LARGE_PERCENT ? maxSize : minSize;
+      return size;
+   }
+
+   private static Object generate(int size, Random random) {
+      if (TYPE.equals("bytes")) {
+         byte[] bytes = new byte[size];
+         random.nextBytes(bytes);
+         return bytes;
+      }
+      if (TYPE.equals("pojo")) return Order.fill(new Order(), size, random);
+      if (TYPE.equals("externalizer")) return Order.fill(new ExternalizedOrder(), size, random);
+      return Transactional.generateRandomString(size, random);
+   }
+
+   /**
+    * Marshalls and unmarshalls the given values with the marshaller of the cache, round robin, for a couple
+    * of seconds after a warmup: what each write pays before the value reaches the wire.
+    *
+    * @return the marshalled bytes, marshalling and unmarshalling nanoseconds, all per value; null if the
+    *         marshaller of the cache can't be looked up
+    */
+   static double[] measureMarshalling(Cache<?, ?> cache, Object[] values) throws Exception {
+      final StreamingMarshaller marshaller = marshaller(cache);
+      if (marshaller == null) return null;
+      marshall(marshaller, values, MARSHALLING_WARMUP_NANOS);
+      return marshall(marshaller, values, MARSHALLING_NANOS);
+   }
+
+   private static double[] marshall(StreamingMarshaller marshaller, Object[] values, long duration) throws Exception {
+      long bytes = 0, marshalling = 0, unmarshalling = 0, count = 0;
+      final long end = System.nanoTime() + duration;
+      while (System.nanoTime() < end) {
+         final long start = System.nanoTime();
+         final byte[] marshalled = marshaller.objectToByteBuffer(values[(int) (count % values.length)]);
+         final long marshalledAt = System.nanoTime();
+         marshaller.objectFromByteBuffer(marshalled);
+         unmarshalling += System.nanoTime() - marshalledAt;
+         marshalling += marshalledAt - start;
+         bytes += marshalled.length;
+         count++;
+      }
+      return new double[] { (double) bytes / count, (double) marshalling / count, (double) unmarshalling / count };
+   }
+
+   private static StreamingMarshaller marshaller(Cache<?, ?> cache) {
+      ComponentRegistry registry = cache.getAdvancedCache().getComponentRegistry();
+      if (registry == null) return null;
+      // named cache marshaller from 5.1, the global one registered by type before
+      StreamingMarshaller marshaller = registry.getComponent(StreamingMarshaller.class, "org.infinispan.marshaller.cache");
+      return marshaller != null ? marshaller : registry.getComponent(StreamingMarshaller.class);
+   }
+
+   /**
+    * A small domain object: a few fields and a list of lines, so that marshalling walks an object graph.
+    */
+   public static class Order implements Serializable {
+      private static final long serialVersionUID = 1L;
+
+      long id;
+      String customer;
+      long timestamp;
+      List<Line> lines;
+
+      static Order fill(Order order, int size, Random random) {
+         order.id = random.nextLong();
+         order.customer = "customer-" + random.nextInt(100000);
+         order.timestamp = System.currentTimeMillis();
+         final int count = Math.max(1, size / LINE_BYTES);
+         order.lines = new ArrayList<Line>(count);
+         for (int i = 0; i < count; i++) {
+            order.lines.add(new Line("sku-" + random.nextInt(1000000), 1 + random.nextInt(100), random.nextInt(100000) / 100.0));
+         }
+         return order;
+      }
+   }
+
+   public static class Line implements Serializable {
+      private static final long serialVersionUID = 1L;
+
+      final String sku;
+      final int quantity;
+      final double price;
+
+      Line(String sku, int quantity, double price) {
+         this.sku = sku;
+         this.quantity = quantity;
+         this.price = price;
+      }
+   }
+
+   @SerializeWith(OrderExternalizer.class)
+   public static class ExternalizedOrder extends Order {
+      private static final long serialVersionUID = 1L;
+   }
+
+   public static class OrderExternalizer implements Externalizer<ExternalizedOrder> {
+      private static final long serialVersionUID = 1L;
+
+      public void writeObject(ObjectOutput output, ExternalizedOrder order) throws IOException {
+         output.writeLong(order.id);
+         output.writeUTF(order.customer);
+         output.writeLong(order.timestamp);
+         output.writeInt(order.lines.size());
+         for (Line line : order.lines) {
+            output.writeUTF(line.sku);
+            output.writeInt(line.quantity);
+            output.writeDouble(line.price);
+         }
+      }
+
+      public ExternalizedOrder readObject(ObjectInput input) throws IOException {
+         ExternalizedOrder order = new ExternalizedOrder();
+         order.id = input.readLong();
+         order.customer = input.readUTF();
+         order.timestamp = input.readLong();
+         final int count = input.readInt();
+         order.lines = new ArrayList<Line>(count);
+         for (int i = 0; i < count; i++) {
+            order.lines.add(new Line(input.readUTF(), input.readInt(), input.readDouble()));
+         }
+         return order;
+      }
+   }
+}
@@ -3,50 +3,173 @@ package org.infinispan.benchmark;
 import org.infinispan.transaction.tm.DummyXid;
 import org.infinispan.util.Util;
 
+import javax.transaction.xa.Xid;
 import java.text.NumberFormat;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * // TODO: Document this
+ * Cost of the Xids created for every 2PC transaction and used as keys of the transaction table:
+ * <ul>
+ *    <li>creation time and allocation per Xid</li>
+ *    <li>hashCode() and equals() time</li>
+ *    <li>throughput of the transaction table churn (put at begin, get at prepare/commit, remove at completion)
+ *    in a ConcurrentHashMap, from 1 to bench.xidMaxThreads threads (default twice the cores)</li>
+ *    <li>heap retained per Xid, alone and as a key of a ConcurrentHashMap</li>
+ * </ul>
  *
  * @author Manik Surtani
  * @since 5.1
  */
 public class XidMicroBench {
-   public static void main(String[] args) {
-      UUID uuid = UUID.randomUUID();
-      int loops = 1000000;
+   private static final int LOOPS = Integer.getInteger("bench.xidCount", 1000000);
+   private static final int MAX_THREADS = Integer.getInteger("bench.xidMaxThreads", Runtime.getRuntime().availableProcessors() * 2);
+   private static final int LIVE_TRANSACTIONS = Integer.getInteger("bench.xidLiveTransactions", 10000); //transaction table size during the churn
+   private static final int CHURN_SECONDS = Integer.getInteger("bench.xidChurnSeconds", 10);
+
+   private static final UUID TM_ID = UUID.randomUUID();
+   private static final NumberFormat NF = NumberFormat.getInstance();
+
+   /**
+    * Consumes results, so that the JIT can't drop the measured code.
+    */
+   private static volatile int sink;
+
+   public static void main(String[] args) throws InterruptedException {
       // warmup
       for (int i=0;i<100000; i++) {
-//         DummyXid xid = new DummyXid(uuid);
+         sink += new DummyXid(TM_ID).hashCode();
       }
 
-      Set<DummyXid> set = new HashSet<DummyXid>(loops);
-
-      System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc();
-      System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc();
-      System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc();
-      System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc();
-      System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc();
-
+      creation();
+      hashCodeAndEquals();
+      for (int threads = 1; threads <= MAX_THREADS; threads *= 2) {
+         churn(threads);
+      }
+      retained();
+   }
 
+   private static void creation() {
+      int hash = 0;
+      long allocatedBefore = MemoryProbe.allocatedBytes();
       long nanos = System.nanoTime();
-      for (int i=0;i<loops; i++) {
-//         set.add(new DummyXid(uuid));
+      for (int i=0;i<LOOPS; i++) {
+         hash += new DummyXid(TM_ID).hashCode();
       }
       long time = System.nanoTime() - nanos;
+      long allocated = MemoryProbe.allocatedBytes() - allocatedBefore;
+      sink += hash;
+
+      System.out.printf("Created %s DummyXids in %s (%s ns per Xid), allocated %s (%s per Xid)%n", NF.format(LOOPS), Util.prettyPrintTime(time, TimeUnit.NANOSECONDS),
+            time / LOOPS, allocatedBefore >= 0 ? StartupSpeedTest.format(allocated) : "unknown", allocatedBefore >= 0 ? allocated / LOOPS + " bytes" : "unknown");
+   }
+
+   private static void hashCodeAndEquals() {
+      Xid[] xids = new Xid[LIVE_TRANSACTIONS];
+      for (int i = 0; i < xids.length; i++) {
+         xids[i] = new DummyXid(TM_ID);
+      }
+      for (int round = 0; round < 2; round++) { //the first round is a warmup
+         int hash = 0;
+         long nanos = System.nanoTime();
+         for (int i = 0; i < LOOPS; i++) {
+            hash += xids[i % xids.length].hashCode();
+         }
+         long hashNanos = System.nanoTime() - nanos;
 
-      System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc();
-      System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc();
-      System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc();
-      System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc();
-      System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc(); System.gc();
+         int equal = 0;
+         nanos = System.nanoTime();
+         for (int i = 0; i < LOOPS; i++) {
+            if (xids[i % xids.length].equals(xids[(i + 1) % xids.length])) equal++;
+         }
+         long equalsNanos = System.nanoTime() - nanos;
+         sink += hash + equal;
 
-      long mem0 = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+         if (round == 1)
+            System.out.printf("hashCode(): %.1f ns, equals() of different Xids: %.1f ns%n", (double) hashNanos / LOOPS, (double) equalsNanos / LOOPS);
+      }
+   }
+
+   /**
+    * Every thread keeps its own transactions in the shared table and replaces the oldest one with a new one in
+    * a loop, as transactions begin and complete.
+    */
+   private static void churn(final int threads) throws InterruptedException {
+      final ConcurrentMap<Xid, Object> table = new ConcurrentHashMap<Xid, Object>(LIVE_TRANSACTIONS * 2, 0.75f, threads);
+      final AtomicBoolean stop = new AtomicBoolean(false);
+      final CountDownLatch startSignal = new CountDownLatch(1);
+      final OpCounter[] counters = new OpCounter[threads];
+      List<Thread> workers = new ArrayList<Thread>(threads);
+      for (int t = 0; t < threads; t++) {
+         final OpCounter counter = counters[t] = new OpCounter();
+         Thread worker = new Thread("XidChurn-" + t) {
+            public void run() {
+               Xid[] live = new Xid[Math.max(1, LIVE_TRANSACTIONS / threads)];
+               for (int i = 0; i < live.length; i++) {
+                  live[i] = new DummyXid(TM_ID);
+                  table.put(live[i], live[i]);
+               }
+               try {
+                  startSignal.await();
+               } catch (InterruptedException e) {
+                  return;
+               }
+               int misses = 0;
+               int oldest = 0;
+               while (!stop.get()) {
+                  Xid xid = new DummyXid(TM_ID);
+                  table.put(xid, xid);
+                  if (table.get(xid) == null) misses++;
+                  table.remove(live[oldest]);
+                  live[oldest] = xid;
+                  oldest = (oldest + 1) % live.length;
+                  counter.increment();
+               }
+               sink += misses;
+            }
+         };
+         workers.add(worker);
+         worker.start();
+      }
+      final long start = System.nanoTime();
+      startSignal.countDown();
+      Thread.sleep(TimeUnit.SECONDS.toMillis(CHURN_SECONDS));
+      stop.set(true);
+      for (Thread worker : workers) {
+         worker.join();
+      }
+      final long nanos = System.nanoTime() - start;
+      long transactions = 0;
+      for (OpCounter counter : counters) {
+         transactions += counter.get();
+      }
+      System.out.printf("Transaction table churn with %s threads: %s transactions/second (put, get and remove each)%n", threads,
+            NF.format(Math.round(transactions * 1e9 / nanos)));
+   }
+
+   private static void retained() {
+      long retainedBefore = MemoryProbe.retainedHeap();
+      Xid[] xids = new Xid[LOOPS];
+      long arrayOnly = MemoryProbe.retainedHeap() - retainedBefore;
+      for (int i=0;i<LOOPS; i++) {
+         xids[i] = new DummyXid(TM_ID);
+      }
+      long retained = MemoryProbe.retainedHeap() - retainedBefore - arrayOnly;
+
+      ConcurrentMap<Xid, Object> table = new ConcurrentHashMap<Xid, Object>();
+      for (Xid xid : xids) {
+         table.put(xid, xid);
+      }
+      long retainedInTable = MemoryProbe.retainedHeap() - retainedBefore - arrayOnly;
+      sink += table.size() + xids.length;
 
-      System.out.printf("Created %s DummyXids in %s and consumed %s memory%n%n", NumberFormat.getInstance().format(loops), Util.prettyPrintTime(time, TimeUnit.NANOSECONDS), StartupSpeedTest.format(mem0));
+      System.out.printf("Retained %s for %s DummyXids (%s bytes per Xid), %s bytes per Xid once in a ConcurrentHashMap%n%n",
+            StartupSpeedTest.format(retained), NF.format(LOOPS), retained / LOOPS, retainedInTable / LOOPS);
    }
 }
@@ -0,0 +1,48 @@
+package org.infinispan.benchmark.jmh;
+
+import org.infinispan.config.Configuration;
+import org.infinispan.eviction.EvictionStrategy;
+import org.infinispan.transaction.lookup.DummyTransactionManagerLookup;
+import org.infinispan.util.concurrent.IsolationLevel;
+
+import java.util.Random;
+
+/**
+ * Configurations and payloads shared by the JMH benchmarks.
+ */
+final class BenchmarkConfigurations {
+
+   private static final int EVICTION_MAX_ENTRIES = 10000;
+   private static final long RANDOM_SEED = 173;
+
+   private BenchmarkConfigurations() {
+   }
+
+   /**
+    * @param transactional whether the cache gets a transaction manager; without one, every operation is
+    *                      autocommitted instead of running in an implicit transaction
+    */
+   static Configuration local(String isolationLevel, EvictionStrategy evictionStrategy, boolean transactional) {
+      // Using deprecated config API to be compatible with Infinispan 5.1 as well as 5.0
+      Configuration c = new Configuration();
+      c.setCacheMode(Configuration.CacheMode.LOCAL);
+      c.setIsolationLevel(IsolationLevel.valueOf(isolationLevel));
+      c.setEvictionStrategy(evictionStrategy);
+      if (evictionStrategy != EvictionStrategy.NONE)
+         c.setEvictionMaxEntries(EVICTION_MAX_ENTRIES);
+      if (transactional)
+         c.setTransactionManagerLookupClass(DummyTransactionManagerLookup.class.getName());
+      c.setExposeJmxStatistics(false);
+      return c;
+   }
+
+   /**
+    * Same shape as Transactional.generateRandomString: size is in bytes, each char is 2 bytes.
+    */
+   static String payload(int size) {
+      Random random = new Random(RANDOM_SEED);
+      StringBuilder sb = new StringBuilder(size);
+      for (int i = 0; i < size / 2; i++) sb.append((char) (64 + random.nextInt(26)));
+      return sb.toString();
+   }
+}
@@ -0,0 +1,66 @@
+package org.infinispan.benchmark.jmh;
+
+import org.infinispan.config.Configuration;
+import org.infinispan.config.GlobalConfiguration;
+import org.infinispan.eviction.EvictionStrategy;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH version of StartupSpeedTest: cost of creating a new named cache of a running cache manager. Each
+ * iteration times a fixed batch of BATCH_SIZE getCache() calls on a fresh cache manager, so the number of
+ * caches per manager stays bounded; the reported time is that of the whole batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = CacheStartupBenchmark.BATCH_SIZE)
+@Measurement(iterations = 10, batchSize = CacheStartupBenchmark.BATCH_SIZE)
+@Fork(2)
+public class CacheStartupBenchmark {
+
+   static final int BATCH_SIZE = 100;
+
+   @Param({"REPEATABLE_READ", "READ_COMMITTED"})
+   String isolationLevel;
+
+   @Param({"NONE", "LIRS"})
+   String evictionStrategy;
+
+   private EmbeddedCacheManager cacheManager;
+   private int cacheCounter;
+
+   @Setup(Level.Iteration)
+   public void startCacheManager() {
+      Configuration c = BenchmarkConfigurations.local(isolationLevel, EvictionStrategy.valueOf(evictionStrategy), true);
+      GlobalConfiguration gc = GlobalConfiguration.getNonClusteredDefault();
+      gc.setExposeGlobalJmxStatistics(false);
+      cacheManager = new DefaultCacheManager(gc, c);
+      cacheManager.getCache();
+   }
+
+   @TearDown(Level.Iteration)
+   public void stopCacheManager() {
+      cacheManager.stop();
+   }
+
+   @Benchmark
+   public Object getCache() {
+      return cacheManager.getCache("Cache-" + cacheCounter++);
+   }
+}
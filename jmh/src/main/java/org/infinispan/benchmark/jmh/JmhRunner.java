@@ -0,0 +1,28 @@
+package org.infinispan.benchmark.jmh;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of the benchmarks jar: accepts the usual JMH command line options, but writes the results
+ * as JMH JSON unless told otherwise, e.g.
+ * <pre>java -jar jmh/target/benchmarks.jar -p payloadSize=10240 LocalCache</pre>
+ * The output file can be changed with -Dbench.jmh.result (default jmh-result.json).
+ */
+public class JmhRunner {
+
+   private static final String RESULT_FILE = System.getProperty("bench.jmh.result", "jmh-result.json");
+
+   public static void main(String[] args) throws Exception {
+      CommandLineOptions cmdOptions = new CommandLineOptions(args);
+      OptionsBuilder builder = new OptionsBuilder();
+      builder.parent(cmdOptions);
+      if (!cmdOptions.getResultFormat().hasValue())
+         builder.resultFormat(ResultFormatType.JSON);
+      if (!cmdOptions.getResult().hasValue())
+         builder.result(RESULT_FILE);
+      new Runner(builder.build()).run();
+   }
+}
@@ -0,0 +1,111 @@
+package org.infinispan.benchmark.jmh;
+
+import org.infinispan.Cache;
+import org.infinispan.config.Configuration;
+import org.infinispan.config.GlobalConfiguration;
+import org.infinispan.eviction.EvictionStrategy;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.transaction.TransactionManager;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-node get, put and transactional put+commit on a LOCAL cache, the local counterpart of TxSpeedTest.
+ * Get and put run on a non-transactional cache, txCommit on a transactional one with the same keys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(2)
+public class LocalCacheBenchmark {
+
+   private static final int NUM_KEYS = 1000;
+
+   @Param({"1024", "10240"})
+   int payloadSize;
+
+   @Param({"REPEATABLE_READ", "READ_COMMITTED"})
+   String isolationLevel;
+
+   @Param({"NONE", "LIRS"})
+   String evictionStrategy;
+
+   private EmbeddedCacheManager cacheManager;
+   private Cache<String, String> cache;
+   private Cache<String, String> txCache;
+   private TransactionManager tm;
+   private String[] keys;
+   private String payload;
+
+   @Setup
+   public void startCache() {
+      Configuration c = BenchmarkConfigurations.local(isolationLevel, EvictionStrategy.valueOf(evictionStrategy), false);
+      GlobalConfiguration gc = GlobalConfiguration.getNonClusteredDefault();
+      gc.setExposeGlobalJmxStatistics(false);
+      cacheManager = new DefaultCacheManager(gc, c);
+      cacheManager.defineConfiguration("tx", BenchmarkConfigurations.local(isolationLevel, EvictionStrategy.valueOf(evictionStrategy), true));
+      cache = cacheManager.getCache();
+      txCache = cacheManager.getCache("tx");
+      tm = txCache.getAdvancedCache().getTransactionManager();
+      payload = BenchmarkConfigurations.payload(payloadSize);
+      keys = new String[NUM_KEYS];
+      for (int i = 0; i < NUM_KEYS; i++) {
+         keys[i] = "KEY-" + i;
+         cache.put(keys[i], payload);
+         txCache.put(keys[i], payload);
+      }
+   }
+
+   @TearDown
+   public void stopCache() {
+      cacheManager.stop();
+   }
+
+   @State(Scope.Thread)
+   public static class KeyCursor {
+      private int next;
+
+      String nextKey(String[] keys) {
+         if (next == keys.length) next = 0;
+         return keys[next++];
+      }
+   }
+
+   @Benchmark
+   public String get(KeyCursor cursor) {
+      return cache.get(cursor.nextKey(keys));
+   }
+
+   @Benchmark
+   public String put(KeyCursor cursor) {
+      return cache.put(cursor.nextKey(keys), payload);
+   }
+
+   @Benchmark
+   public String txCommit(KeyCursor cursor) throws Exception {
+      tm.begin();
+      try {
+         String previous = txCache.put(cursor.nextKey(keys), payload);
+         tm.commit();
+         return previous;
+      } catch (Exception e) {
+         tm.rollback();
+         throw e;
+      }
+   }
+}
@@ -0,0 +1,55 @@
+package org.infinispan.benchmark.jmh;
+
+import org.infinispan.transaction.tm.DummyXid;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH version of XidMicroBench: creation and hashing cost of the Xids generated by the dummy transaction
+ * manager for every transaction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(2)
+public class XidBenchmark {
+
+   private UUID tmId;
+   private DummyXid xid;
+   private DummyXid otherXid;
+
+   @Setup
+   public void createXids() {
+      tmId = UUID.randomUUID();
+      xid = new DummyXid(tmId);
+      otherXid = new DummyXid(tmId);
+   }
+
+   @Benchmark
+   public DummyXid create() {
+      return new DummyXid(tmId);
+   }
+
+   @Benchmark
+   public int hashCodeOf() {
+      return xid.hashCode();
+   }
+
+   @Benchmark
+   public boolean equalsOther() {
+      return xid.equals(otherXid);
+   }
+}